@@ -0,0 +1,199 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.genai.Client;
+import com.google.genai.types.AutomaticFunctionCallingConfig;
+import com.google.genai.types.Content;
+import com.google.genai.types.FunctionCall;
+import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.GenerateContentResponse;
+import com.google.genai.types.Part;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Function calling loop built on the GenAI client's async API, for tools returning CompletableFutures.
+ * Neither the model calls nor the tools block a thread: each turn is chained on the previous one,
+ * so a server can keep thousands of tool-using conversations in flight.
+ * Function declarations come from a ToolSchemaRegistry, computed once and reused on every turn.
+ */
+public final class AsyncToolCallingChat {
+
+  private static final ObjectMapper OBJECT_MAPPER = ToolCodecs.objectMapper();
+  private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+
+  private record AsyncTool<I, O>(Class<I> inputType, Function<I, CompletableFuture<O>> function) {
+    CompletableFuture<Object> invoke(Map<String, Object> arguments) {
+      I request = OBJECT_MAPPER.convertValue(arguments, inputType);
+      return function.apply(request).thenApply(response -> response);
+    }
+  }
+
+  private final Client client;
+  private final String model;
+  private final GenerateContentConfig config;
+  private final Map<String, AsyncTool<?, ?>> tools;
+  private final int maxTurns;
+
+  private AsyncToolCallingChat(Builder builder) {
+    this.client = builder.client;
+    this.model = builder.model;
+    this.tools = Map.copyOf(builder.tools);
+    this.maxTurns = builder.maxTurns;
+    GenerateContentConfig.Builder configBuilder = GenerateContentConfig.builder()
+        .tools(builder.toolSchemas.tool())
+        // tools run here, asynchronously, not in the SDK
+        .automaticFunctionCalling(AutomaticFunctionCallingConfig.builder().disable(true).build());
+    if (builder.systemInstruction != null) {
+      configBuilder.systemInstruction(Content.fromParts(Part.fromText(builder.systemInstruction)));
+    }
+    if (builder.temperature != null) {
+      configBuilder.temperature(builder.temperature);
+    }
+    this.config = configBuilder.build();
+  }
+
+  public static Builder builder(Client client, String model, ToolSchemaRegistry toolSchemas) {
+    return new Builder(client, model, toolSchemas);
+  }
+
+  public CompletableFuture<String> call(String userText) {
+    List<Content> history = new ArrayList<>();
+    history.add(Content.builder().role("user").parts(List.of(Part.fromText(userText))).build());
+    return turn(history, 1);
+  }
+
+  private CompletableFuture<String> turn(List<Content> history, int turn) {
+    return client.async.models.generateContent(model, history, config)
+        .thenCompose(response -> {
+          List<FunctionCall> functionCalls = response.functionCalls();
+          if (functionCalls == null || functionCalls.isEmpty()) {
+            return CompletableFuture.completedFuture(response.text());
+          }
+          if (turn >= maxTurns) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("No final answer after " + maxTurns + " function calling turns"));
+          }
+
+          // all the function calls of the turn run concurrently, their responses keep the requested order
+          List<CompletableFuture<Part>> functionResponses = functionCalls.stream()
+              .map(this::invoke)
+              .toList();
+          return CompletableFuture.allOf(functionResponses.toArray(new CompletableFuture<?>[0]))
+              .thenCompose(done -> {
+                List<Content> nextHistory = new ArrayList<>(history);
+                nextHistory.add(modelContent(response));
+                nextHistory.add(Content.builder()
+                    .role("user")
+                    .parts(functionResponses.stream().map(CompletableFuture::join).toList())
+                    .build());
+                return turn(nextHistory, turn + 1);
+              });
+        });
+  }
+
+  private CompletableFuture<Part> invoke(FunctionCall functionCall) {
+    String name = functionCall.name().orElse("");
+    AsyncTool<?, ?> tool = tools.get(name);
+    if (tool == null) {
+      return CompletableFuture.completedFuture(
+          Part.fromFunctionResponse(name, Map.of("error", "Unknown function: " + name)));
+    }
+
+    CompletableFuture<Object> result;
+    try {
+      result = tool.invoke(functionCall.args().orElse(Map.of()));
+    } catch (RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+    // a failing tool is reported to the model, which can retry or answer without it
+    return result
+        .thenApply(response -> Part.fromFunctionResponse(name, toMap(response)))
+        .exceptionally(e -> Part.fromFunctionResponse(name, Map.of("error", String.valueOf(e.getMessage()))));
+  }
+
+  private static Map<String, Object> toMap(Object response) {
+    if (response == null || response instanceof CharSequence || response instanceof Number
+        || response instanceof Boolean) {
+      Map<String, Object> map = new HashMap<>();
+      map.put("result", response);
+      return map;
+    }
+    return OBJECT_MAPPER.convertValue(response, MAP_TYPE);
+  }
+
+  private static Content modelContent(GenerateContentResponse response) {
+    return response.candidates()
+        .flatMap(candidates -> candidates.stream().findFirst())
+        .flatMap(candidate -> candidate.content())
+        .orElseThrow(() -> new IllegalStateException("Function calls without model content"));
+  }
+
+  public static final class Builder {
+    private final Client client;
+    private final String model;
+    private final ToolSchemaRegistry toolSchemas;
+    private final Map<String, AsyncTool<?, ?>> tools = new HashMap<>();
+    private String systemInstruction;
+    private Float temperature;
+    private int maxTurns = 5;
+
+    private Builder(Client client, String model, ToolSchemaRegistry toolSchemas) {
+      this.client = client;
+      this.model = model;
+      this.toolSchemas = toolSchemas;
+    }
+
+    // binds a function declared in the registry to its asynchronous implementation
+    public <I, O> Builder tool(String name, Function<I, CompletableFuture<O>> function) {
+      @SuppressWarnings("unchecked")
+      Class<I> inputType = (Class<I>) toolSchemas.get(name).inputType();
+      tools.put(name, new AsyncTool<>(inputType, function));
+      return this;
+    }
+
+    public Builder systemInstruction(String systemInstruction) {
+      this.systemInstruction = systemInstruction;
+      return this;
+    }
+
+    public Builder temperature(float temperature) {
+      this.temperature = temperature;
+      return this;
+    }
+
+    public Builder maxTurns(int maxTurns) {
+      this.maxTurns = maxTurns;
+      return this;
+    }
+
+    public AsyncToolCallingChat build() {
+      for (String name : toolSchemas.names()) {
+        if (!tools.containsKey(name)) {
+          throw new IllegalStateException("No implementation bound to declared function: " + name);
+        }
+      }
+      return new AsyncToolCallingChat(this);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.genai.Client;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.chat.prompt.PromptTemplate;
+import org.springframework.ai.chat.prompt.SystemPromptTemplate;
+import org.springframework.ai.google.genai.GoogleGenAiChatModel;
+import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
+import org.springframework.ai.reader.TextReader;
+import org.springframework.core.io.FileSystemResource;
+
+/**
+ * Summarizes every document of a directory, or of a manifest listing one path per line, in a single run.
+ * The chunks of all documents share one rate-limited worker pool served round-robin per document,
+ * results are streamed to a JSONL file as documents complete, and the run reports documents per minute,
+ * tokens per minute and the 95th percentile of the per-document latency.
+ *
+ * Usage: BatchSummarizationExample [directory|manifest] [output.jsonl]
+ */
+public class BatchSummarizationExample {
+  private static final int CONCURRENCY = 8;
+  private static final int REQUESTS_PER_MINUTE = 300;  // adjust to the quota of your project
+  private static final int TOKENS_PER_MINUTE = 1_000_000;
+  private static final int CHUNK_TOKENS = 8_000;
+  private static final int MERGE_FAN_IN = 4;
+
+  private static final String SUB_SUMMARY_TEMPLATE = """
+      Write a concise summary of the following text delimited by triple backquotes.
+
+      ```{content}```
+
+      Output starts with CONCISE SUB-SUMMARY:
+      """;
+
+  private static final String FINAL_SUMMARY_TEMPLATE = """
+      Strictly please give me a summary with an introduction, three one sentence bullet points, and a conclusion from the following text delimited by triple backquotes.
+
+      ```{content}```
+
+      Output starts with SUMMARY:
+      """;
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @JsonInclude(Include.NON_NULL)
+  record DocumentSummary(String document, int tokens, int chunks, long millis, String summary, String error) {}
+
+  public static void main(String[] args) throws Exception {
+    Path input = Path.of(args.length > 0 ? args[0] : "src/main/resources");
+    Path output = Path.of(args.length > 1 ? args[1] : "summaries.jsonl");
+    List<Path> documents = documents(input);
+    System.out.println("Summarizing " + documents.size() + " documents from " + input + " into " + output);
+
+    boolean useVertexAi = Boolean.parseBoolean(System.getenv("USE_VERTEX_AI"));
+    Client client;
+    if (useVertexAi) {
+      client = Client.builder()
+          .project(System.getenv("GOOGLE_CLOUD_PROJECT"))
+          .location(System.getenv("GOOGLE_CLOUD_LOCATION"))
+          .vertexAI(true)
+          .build();
+    } else {
+      client = Client.builder()
+          .apiKey(System.getenv("GOOGLE_API_KEY"))
+          .build();
+    }
+
+    var geminiChatModel = GoogleGenAiChatModel.builder()
+        .genAiClient(client)
+        .defaultOptions(GoogleGenAiChatOptions.builder()
+            .model(System.getenv("GEMINI_MODEL"))
+            .temperature(0.2)
+            .build())
+        .build();
+
+    Message systemMessage = new SystemPromptTemplate("""
+        You are a helpful AI assistant.
+        You are an AI assistant that helps people summarize information in a concise way.
+        Strictly ignore Project Gutenberg & ignore copyright notice in summary output.
+        """).createMessage();
+
+    TextChunker chunker = TextChunker.builder()
+        .chunkTokens(CHUNK_TOKENS)
+        .overlapTokens(CHUNK_TOKENS / 10)
+        .build();
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    AtomicLong tokens = new AtomicLong();
+    AtomicLong failures = new AtomicLong();
+
+    long start = System.nanoTime();
+    try (FairRequestScheduler scheduler = FairRequestScheduler.builder()
+            .concurrency(CONCURRENCY)
+            .requestsPerMinute(REQUESTS_PER_MINUTE)
+            .tokensPerMinute(TOKENS_PER_MINUTE)
+            .build();
+         BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+
+      // every document is scheduled up front, the scheduler interleaves their chunks
+      List<CompletableFuture<Void>> results = documents.stream()
+          .map(document -> summarize(document, chunker, scheduler, executor, systemMessage, geminiChatModel)
+              .thenAccept(summary -> {
+                latencies.add(summary.millis());
+                tokens.addAndGet(summary.tokens());
+                if (summary.error() != null) {
+                  failures.incrementAndGet();
+                }
+                System.out.printf("%s: %d tokens, %d chunks, %d ms%s%n", summary.document(), summary.tokens(),
+                    summary.chunks(), summary.millis(), summary.error() != null ? ", failed: " + summary.error() : "");
+                writeLine(writer, summary);
+              }))
+          .toList();
+      CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+    }
+    executor.shutdown();
+
+    double minutes = (System.nanoTime() - start) / 60e9;
+    List<Long> sorted = latencies.stream().sorted().toList();
+    long p95 = sorted.isEmpty() ? 0 : sorted.get((int) Math.ceil(0.95 * sorted.size()) - 1);
+    System.out.printf("%d documents (%d failed) in %.2f min: %.1f docs/min, %.0f tokens/min, p95 %d ms per document%n",
+        sorted.size(), failures.get(), minutes, sorted.size() / minutes, tokens.get() / minutes, p95);
+  }
+
+  private static CompletableFuture<DocumentSummary> summarize(Path document, TextChunker chunker,
+      FairRequestScheduler scheduler, ExecutorService executor, Message systemMessage,
+      GoogleGenAiChatModel geminiChatModel) {
+    long start = System.currentTimeMillis();
+    String id = document.toString();
+    String text;
+    try {
+      text = new TextReader(new FileSystemResource(document)).get().getFirst().getText();
+    } catch (RuntimeException e) {
+      return CompletableFuture.completedFuture(new DocumentSummary(id, 0, 0, 0, null, String.valueOf(e.getMessage())));
+    }
+    List<TextChunker.Chunk> chunks = chunker.split(text);
+    int documentTokens = chunker.countTokens(text);
+
+    CompletableFuture<String> summary;
+    if (chunks.isEmpty()) {
+      summary = CompletableFuture.completedFuture("");
+    } else if (chunks.size() == 1) {
+      // a document fitting in one chunk is summarized in a single request
+      summary = scheduler.submit(id, documentTokens,
+          () -> call(FINAL_SUMMARY_TEMPLATE, chunks.getFirst().text(), systemMessage, geminiChatModel));
+    } else {
+      List<CompletableFuture<String>> subSummaries = chunks.stream()
+          .map(chunk -> scheduler.submit(id, chunk.tokens(),
+              () -> call(SUB_SUMMARY_TEMPLATE, chunk.text(), systemMessage, geminiChatModel)))
+          .toList();
+      // merges go through the scheduler as well, queued behind the document's remaining chunks
+      TreeReducer reducer = TreeReducer.builder(batch -> scheduler.submit(id, chunker.countTokens(batch),
+              () -> call(SUB_SUMMARY_TEMPLATE, batch, systemMessage, geminiChatModel)).join())
+          .fanIn(MERGE_FAN_IN)
+          .executor(executor)
+          .build();
+      summary = reducer.reduceAsync(subSummaries, context -> scheduler.submit(id, chunker.countTokens(context),
+          () -> call(FINAL_SUMMARY_TEMPLATE, context, systemMessage, geminiChatModel)).join());
+    }
+    return summary
+        .thenApply(summaryText -> new DocumentSummary(id, documentTokens, chunks.size(),
+            System.currentTimeMillis() - start, summaryText, null))
+        .exceptionally(e -> new DocumentSummary(id, documentTokens, chunks.size(),
+            System.currentTimeMillis() - start, null, String.valueOf(e.getMessage())));
+  }
+
+  private static String call(String template, String content, Message systemMessage,
+      GoogleGenAiChatModel geminiChatModel) {
+    Message userMessage = PromptTemplate.builder()
+        .template(template)
+        .variables(Map.of("content", content))
+        .build()
+        .createMessage();
+    return geminiChatModel.call(new Prompt(List.of(userMessage, systemMessage)))
+        .getResult().getOutput().getText();
+  }
+
+  // a directory is walked for text files, any other file is a manifest of paths relative to it
+  private static List<Path> documents(Path input) throws IOException {
+    if (Files.isDirectory(input)) {
+      try (Stream<Path> files = Files.walk(input)) {
+        return files
+            .filter(Files::isRegularFile)
+            .filter(file -> file.toString().endsWith(".txt") || file.toString().endsWith(".md"))
+            .sorted()
+            .toList();
+      }
+    }
+    Path base = input.toAbsolutePath().getParent();
+    return Files.readAllLines(input, StandardCharsets.UTF_8).stream()
+        .map(String::strip)
+        .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+        .map(base::resolve)
+        .toList();
+  }
+
+  // completed documents are written as they finish, one JSON object per line
+  private static void writeLine(BufferedWriter writer, DocumentSummary summary) {
+    try {
+      String line = OBJECT_MAPPER.writeValueAsString(summary);
+      synchronized (writer) {
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * The measuring loop of the benchmarks: runs a task for warm-up rounds, so the JIT has compiled it,
+ * then for measured rounds, and reports the wall time and the bytes allocated by all threads per round.
+ * Pool threads started by the task are counted, their allocation included.
+ */
+final class Benchmark {
+
+  /** Wall time and allocation of one round, averaged over the measured rounds, and the last result. */
+  record Measurement<T>(double nanosPerRound, long bytesPerRound, T result) {}
+
+  interface Task<T> {
+    T run() throws Exception;
+  }
+
+  // results are published here so the JIT cannot drop the work
+  private static volatile Object sink;
+
+  private Benchmark() {
+  }
+
+  public static <T> Measurement<T> run(int warmupRounds, int measuredRounds, Task<T> task) throws Exception {
+    for (int i = 0; i < warmupRounds; i++) {
+      sink = task.run();
+    }
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    T result = null;
+    long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < measuredRounds; i++) {
+      result = task.run();
+      sink = result;
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+    return new Measurement<>((double) elapsed / measuredRounds, allocated / measuredRounds, result);
+  }
+
+  // runs the task and prints its line, a round being one unit: call, request, split...
+  public static <T> Measurement<T> measure(String label, String unit, int warmupRounds, int measuredRounds,
+      Task<T> task) throws Exception {
+    Measurement<T> measurement = run(warmupRounds, measuredRounds, task);
+    System.out.printf("  %-36s %s/%-8s %14d bytes allocated/%s%n",
+        label, formatTime(measurement.nanosPerRound()), unit, measurement.bytesPerRound(), unit);
+    return measurement;
+  }
+
+  public static String formatTime(double nanos) {
+    if (nanos < 10_000) {
+      return String.format("%10.1f ns", nanos);
+    }
+    if (nanos < 10_000_000) {
+      return String.format("%10.2f us", nanos / 1_000);
+    }
+    return String.format("%10.2f ms", nanos / 1_000_000);
+  }
+}
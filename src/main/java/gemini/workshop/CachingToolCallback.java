@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+
+/**
+ * Memoizing ToolCallback for idempotent tools, whose result only depends on their arguments.
+ * Results are cached by the canonicalized JSON arguments for a time-to-live,
+ * in a size-bounded LRU map, so repeated invocations skip the tool entirely.
+ */
+public final class CachingToolCallback implements ToolCallback {
+
+  /** Cache metrics, reported since the callback was built. */
+  public record CacheStats(long hits, long misses, long evictions, int size) {
+    public double hitRate() {
+      long requests = hits + misses;
+      return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+  }
+
+  private record CachedResult(String result, long expiresAtNanos) {}
+
+  // sorted keys make {"a":1,"b":2} and {"b":2,"a":1} the same cache entry
+  private static final ObjectMapper CANONICAL_MAPPER = new ObjectMapper()
+      .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+  private final ToolCallback delegate;
+  private final long ttlNanos;
+  private final Map<String, CachedResult> cache;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private CachingToolCallback(ToolCallback delegate, Duration ttl, int maxEntries) {
+    this.delegate = delegate;
+    this.ttlNanos = ttl.toNanos();
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+        if (size() > maxEntries) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Marks the tool as idempotent; by default results live for 5 minutes, up to 1000 entries. */
+  public static Builder idempotent(ToolCallback delegate) {
+    return new Builder(delegate);
+  }
+
+  @Override
+  public ToolDefinition getToolDefinition() {
+    return delegate.getToolDefinition();
+  }
+
+  @Override
+  public ToolMetadata getToolMetadata() {
+    return delegate.getToolMetadata();
+  }
+
+  @Override
+  public String call(String toolInput) {
+    return call(toolInput, null);
+  }
+
+  @Override
+  public String call(String toolInput, ToolContext toolContext) {
+    String key = canonicalize(toolInput);
+    long now = System.nanoTime();
+    synchronized (cache) {
+      CachedResult cached = cache.get(key);
+      if (cached != null && now - cached.expiresAtNanos() < 0) {
+        hits.increment();
+        return cached.result();
+      }
+      if (cached != null) {
+        cache.remove(key);
+      }
+    }
+
+    // run the tool outside the lock; concurrent misses on the same key may both call it
+    misses.increment();
+    String result = delegate.call(toolInput, toolContext);
+    synchronized (cache) {
+      cache.put(key, new CachedResult(result, System.nanoTime() + ttlNanos));
+    }
+    return result;
+  }
+
+  public CacheStats stats() {
+    synchronized (cache) {
+      return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), cache.size());
+    }
+  }
+
+  private static String canonicalize(String toolInput) {
+    if (toolInput == null || toolInput.isBlank()) {
+      return "{}";
+    }
+    try {
+      return CANONICAL_MAPPER.writeValueAsString(CANONICAL_MAPPER.readValue(toolInput, Object.class));
+    } catch (JsonProcessingException e) {
+      // not valid JSON, the tool reports the error itself; cache by the raw input
+      return toolInput;
+    }
+  }
+
+  public static final class Builder {
+    private final ToolCallback delegate;
+    private Duration ttl = Duration.ofMinutes(5);
+    private int maxEntries = 1000;
+
+    private Builder(ToolCallback delegate) {
+      this.delegate = delegate;
+    }
+
+    public Builder ttl(Duration ttl) {
+      this.ttl = ttl;
+      return this;
+    }
+
+    public Builder maxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    public CachingToolCallback build() {
+      return new CachingToolCallback(delegate, ttl, maxEntries);
+    }
+  }
+}
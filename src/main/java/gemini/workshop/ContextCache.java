@@ -0,0 +1,358 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.google.genai.errors.ApiException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.google.genai.GoogleGenAiChatModel;
+import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
+import org.springframework.ai.google.genai.cache.CachedContentRequest;
+import org.springframework.ai.google.genai.cache.GoogleGenAiCachedContent;
+import org.springframework.ai.google.genai.cache.GoogleGenAiCachedContentService;
+import org.springframework.ai.google.genai.metadata.GoogleGenAiUsage;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+/**
+ * Asks many questions against the same large context, a book or a set of retrieved documents,
+ * without resending it with every question. The system instruction and the context are stored once
+ * as Gemini cached content and later prompts only reference the cache by name.
+ *
+ * The first question about a context is answered uncached while the cache is created in the background,
+ * which also gives the baseline latency the cached calls are compared with. A cache used within the
+ * second half of its TTL gets a fresh TTL, unused caches expire, the least recently used one is deleted
+ * when more than maxCaches are alive, and close() deletes them all. When a cache has expired or was
+ * deleted elsewhere the question is resent uncached and the cache created again for the next one.
+ */
+public final class ContextCache implements AutoCloseable {
+
+  /**
+   * One call: the cache it used, null when sent uncached, the prompt tokens of the request and how many
+   * of them came from the cache, its latency and the latency saved against the uncached baseline.
+   */
+  public record CallStats(String cacheName, int promptTokens, int cachedTokens, long millis, long savedMillis) {
+    public boolean cached() {
+      return cacheName != null;
+    }
+  }
+
+  // weight of the latest uncached call in the baseline latency of a context
+  private static final double BASELINE_WEIGHT = 0.5;
+
+  private static final class Entry {
+    final String systemInstruction;
+    final String context;
+    final int tokens;
+    // guarded by the entry: cache creation in flight or done, null until the next question starts it
+    CompletableFuture<GoogleGenAiCachedContent> content;
+    Instant expireTime;
+    double baselineMillis;
+
+    Entry(String systemInstruction, String context, int tokens) {
+      this.systemInstruction = systemInstruction;
+      this.context = context;
+      this.tokens = tokens;
+    }
+  }
+
+  private final GoogleGenAiChatModel chatModel;
+  private final GoogleGenAiCachedContentService cacheService;
+  private final String model;
+  private final Duration ttl;
+  private final int minCacheTokens;
+  private final int maxCaches;
+  private final TokenCountEstimator tokenCountEstimator;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  // guarded by itself, in access order: the least recently used context comes first
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final List<CallStats> calls = Collections.synchronizedList(new ArrayList<>());
+
+  private ContextCache(Builder builder) {
+    this.chatModel = builder.chatModel;
+    this.cacheService = builder.chatModel.getCachedContentService();
+    this.model = builder.model != null ? builder.model : builder.chatModel.getDefaultOptions().getModel();
+    this.ttl = builder.ttl;
+    this.minCacheTokens = builder.minCacheTokens;
+    this.maxCaches = builder.maxCaches;
+    this.tokenCountEstimator = builder.tokenCountEstimator;
+  }
+
+  public static Builder builder(GoogleGenAiChatModel chatModel) {
+    return new Builder(chatModel);
+  }
+
+  /** Answers the user message about the context, from the cached context whenever it is available. */
+  public ChatResponse call(String systemInstruction, String context, Message userMessage) {
+    Entry entry = entry(systemInstruction, context);
+    GoogleGenAiCachedContent content = cachedContent(entry);
+    if (content != null) {
+      long start = System.currentTimeMillis();
+      try {
+        ChatResponse response = chatModel.call(new Prompt(List.of(userMessage), GoogleGenAiChatOptions.builder()
+            .useCachedContent(true)
+            .cachedContentName(content.getName())
+            .build()));
+        long millis = System.currentTimeMillis() - start;
+        double baseline;
+        synchronized (entry) {
+          baseline = entry.baselineMillis;
+        }
+        record(response, content.getName(), millis, baseline > 0 ? Math.round(baseline - millis) : 0);
+        return response;
+      } catch (RuntimeException e) {
+        if (!isCacheMissing(e)) {
+          throw e;
+        }
+        // expired or deleted elsewhere: answer uncached now, the next question creates it again
+        synchronized (entry) {
+          entry.content = null;
+        }
+      }
+    }
+    return uncachedCall(entry, userMessage);
+  }
+
+  /** Deletes the cached context, if any. */
+  public void evict(String systemInstruction, String context) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.remove(key(systemInstruction, context));
+    }
+    if (entry != null) {
+      delete(entry);
+    }
+  }
+
+  public List<CallStats> calls() {
+    return List.copyOf(calls);
+  }
+
+  /** Totals over all calls: prompt tokens served from the caches and latency saved. */
+  public String report() {
+    List<CallStats> snapshot = calls();
+    long cachedCalls = snapshot.stream().filter(CallStats::cached).count();
+    long promptTokens = snapshot.stream().mapToLong(CallStats::promptTokens).sum();
+    long cachedTokens = snapshot.stream().mapToLong(CallStats::cachedTokens).sum();
+    long savedMillis = snapshot.stream().mapToLong(CallStats::savedMillis).sum();
+    return String.format("%d calls, %d cached: %d of %d prompt tokens from the cache (%.0f%%), %d ms saved",
+        snapshot.size(), cachedCalls, cachedTokens, promptTokens,
+        promptTokens == 0 ? 0.0 : 100.0 * cachedTokens / promptTokens, savedMillis);
+  }
+
+  // deletes every cache created here, instead of paying for their storage until the TTL runs out
+  @Override
+  public void close() {
+    List<Entry> all;
+    synchronized (entries) {
+      all = new ArrayList<>(entries.values());
+      entries.clear();
+    }
+    // waits for creations still in flight, so their caches are deleted before the JVM exits
+    CompletableFuture.allOf(all.stream().map(this::delete).toArray(CompletableFuture[]::new))
+        .exceptionally(e -> null)
+        .join();
+    executor.shutdown();
+  }
+
+  private Entry entry(String systemInstruction, String context) {
+    String key = key(systemInstruction, context);
+    Entry evicted = null;
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(systemInstruction, context, tokenCountEstimator.estimate(systemInstruction + context));
+        entries.put(key, entry);
+        if (entries.size() > maxCaches) {
+          Iterator<Entry> eldest = entries.values().iterator();
+          evicted = eldest.next();
+          eldest.remove();
+        }
+      }
+    }
+    if (evicted != null) {
+      delete(evicted);
+    }
+    return entry;
+  }
+
+  // the cache of the entry when ready, null while it is created, or when the context is too small to cache
+  private GoogleGenAiCachedContent cachedContent(Entry entry) {
+    if (cacheService == null || entry.tokens < minCacheTokens) {
+      return null;
+    }
+    CompletableFuture<GoogleGenAiCachedContent> creation;
+    synchronized (entry) {
+      if (entry.content == null) {
+        entry.content = CompletableFuture.supplyAsync(() -> cacheService.create(CachedContentRequest.builder()
+            .model(model)
+            .displayName("context-" + entry.tokens + "-tokens")
+            .systemInstruction(entry.systemInstruction)
+            .addTextContent(entry.context)
+            .ttl(ttl)
+            .build()), executor);
+        return null;
+      }
+      creation = entry.content;
+    }
+    if (!creation.isDone() || creation.isCompletedExceptionally()) {
+      // a failed creation is not retried: the model or the context cannot be cached
+      return null;
+    }
+    GoogleGenAiCachedContent content = creation.join();
+    refresh(entry, content);
+    return content;
+  }
+
+  // sliding TTL: a cache still in use past half of its TTL is granted a full TTL again
+  private void refresh(Entry entry, GoogleGenAiCachedContent content) {
+    Instant expireTime;
+    synchronized (entry) {
+      expireTime = entry.expireTime != null ? entry.expireTime : content.getExpireTime();
+    }
+    if (expireTime == null || Duration.between(Instant.now(), expireTime).compareTo(ttl.dividedBy(2)) > 0) {
+      return;
+    }
+    try {
+      GoogleGenAiCachedContent refreshed = cacheService.refreshExpiration(content.getName(), ttl);
+      synchronized (entry) {
+        entry.expireTime = refreshed.getExpireTime();
+      }
+    } catch (GoogleGenAiCachedContentService.CachedContentException e) {
+      // already gone, the call itself falls back to the uncached prompt
+    }
+  }
+
+  private ChatResponse uncachedCall(Entry entry, Message userMessage) {
+    long start = System.currentTimeMillis();
+    ChatResponse response = chatModel.call(new Prompt(List.of(
+        new SystemMessage(entry.systemInstruction), new UserMessage(entry.context), userMessage)));
+    long millis = System.currentTimeMillis() - start;
+    synchronized (entry) {
+      entry.baselineMillis = entry.baselineMillis == 0
+          ? millis : (1 - BASELINE_WEIGHT) * entry.baselineMillis + BASELINE_WEIGHT * millis;
+    }
+    record(response, null, millis, 0);
+    return response;
+  }
+
+  private void record(ChatResponse response, String cacheName, long millis, long savedMillis) {
+    Usage usage = response.getMetadata().getUsage();
+    int promptTokens = usage.getPromptTokens() != null ? usage.getPromptTokens() : 0;
+    int cachedTokens = usage instanceof GoogleGenAiUsage genAiUsage && genAiUsage.getCachedContentTokenCount() != null
+        ? genAiUsage.getCachedContentTokenCount() : 0;
+    calls.add(new CallStats(cacheName, promptTokens, cachedTokens, millis, savedMillis));
+  }
+
+  private CompletableFuture<Void> delete(Entry entry) {
+    CompletableFuture<GoogleGenAiCachedContent> creation;
+    synchronized (entry) {
+      creation = entry.content;
+      entry.content = null;
+    }
+    return creation == null
+        ? CompletableFuture.completedFuture(null)
+        : creation.thenAccept(content -> cacheService.delete(content.getName()));
+  }
+
+  // the request names a cache which no longer exists, or is no longer readable by this project
+  private static boolean isCacheMissing(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ApiException apiException) {
+        String message = String.valueOf(apiException.message()).toLowerCase();
+        return apiException.code() == 404
+            || (apiException.code() == 403 || apiException.code() == 400) && message.contains("cache");
+      }
+    }
+    return false;
+  }
+
+  private String key(String systemInstruction, String context) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(model.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(systemInstruction.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      return HexFormat.of().formatHex(digest.digest(context.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static final class Builder {
+    private final GoogleGenAiChatModel chatModel;
+    private String model;
+    private Duration ttl = Duration.ofMinutes(10);
+    private int minCacheTokens = 4_096;
+    private int maxCaches = 8;
+    private TokenCountEstimator tokenCountEstimator = TextChunker.defaultTokenCountEstimator();
+
+    private Builder(GoogleGenAiChatModel chatModel) {
+      this.chatModel = chatModel;
+    }
+
+    // caches are bound to a model, defaults to the model of the chat model's default options
+    public Builder model(String model) {
+      this.model = model;
+      return this;
+    }
+
+    public Builder ttl(Duration ttl) {
+      this.ttl = ttl;
+      return this;
+    }
+
+    // Gemini refuses to cache fewer tokens than a per-model minimum, smaller contexts are always sent inline
+    public Builder minCacheTokens(int minCacheTokens) {
+      this.minCacheTokens = minCacheTokens;
+      return this;
+    }
+
+    // storage is billed per token and hour: caches alive at once before the least recently used is deleted
+    public Builder maxCaches(int maxCaches) {
+      this.maxCaches = Math.max(1, maxCaches);
+      return this;
+    }
+
+    public Builder tokenCountEstimator(TokenCountEstimator tokenCountEstimator) {
+      this.tokenCountEstimator = tokenCountEstimator;
+      return this;
+    }
+
+    public ContextCache build() {
+      return new ContextCache(this);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.google.genai.Client;
+import java.time.Duration;
+import java.util.List;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.google.genai.GoogleGenAiChatModel;
+import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
+import org.springframework.ai.reader.TextReader;
+
+/**
+ * Stuffs a whole book into the context once and asks several questions about it.
+ * The first question is sent with the book inline while the book is cached in the background,
+ * the following ones only reference the cache. Every call reports the prompt tokens served
+ * from the cache and the latency saved against the uncached call.
+ */
+public class ContextCachingExample {
+  private static final Duration CACHE_TTL = Duration.ofMinutes(10);
+
+  private static final String SYSTEM_INSTRUCTION = """
+      You are a literary critic answering questions about the book given by the user.
+      Answer from the text of the book only, in at most five sentences.
+      Strictly ignore Project Gutenberg & ignore copyright notice.
+      """;
+
+  private static final List<String> QUESTIONS = List.of(
+      "Who raises Mowgli, and how is he accepted into the Seewonee wolf pack?",
+      "What role does Baloo play in Mowgli's education?",
+      "How does Mowgli defeat Shere Khan?",
+      "Which stories of the book do not involve Mowgli, and who are their heroes?",
+      "What is the Law of the Jungle, and how is it enforced?");
+
+  public static void main(String[] args) {
+    boolean useVertexAi = Boolean.parseBoolean(System.getenv("USE_VERTEX_AI"));
+    Client client;
+    if (useVertexAi) {
+      client = Client.builder()
+          .project(System.getenv("GOOGLE_CLOUD_PROJECT"))
+          .location(System.getenv("GOOGLE_CLOUD_LOCATION"))
+          .vertexAI(true)
+          .build();
+    } else {
+      client = Client.builder()
+          .apiKey(System.getenv("GOOGLE_API_KEY"))
+          .build();
+    }
+
+    var geminiChatModel = GoogleGenAiChatModel.builder()
+        .genAiClient(client)
+        .defaultOptions(GoogleGenAiChatOptions.builder()
+            .model(System.getenv("GEMINI_MODEL"))
+            .temperature(0.2)
+            .build())
+        .build();
+
+    String book = new TextReader("classpath:/the-jungle-book.txt").get().getFirst().getText();
+
+    try (ContextCache contextCache = ContextCache.builder(geminiChatModel)
+        .ttl(CACHE_TTL)
+        .build()) {
+      for (String question : QUESTIONS) {
+        ChatResponse response = contextCache.call(SYSTEM_INSTRUCTION, book, new UserMessage(question));
+        ContextCache.CallStats stats = contextCache.calls().getLast();
+        System.out.println("Q: " + question);
+        System.out.println("GEMINI: " + response.getResult().getOutput().getText());
+        System.out.printf("%s call: %d prompt tokens, %d from the cache, %d ms, %d ms saved%n%n",
+            stats.cached() ? "Cached" : "Uncached", stats.promptTokens(), stats.cachedTokens(),
+            stats.millis(), stats.savedMillis());
+      }
+      System.out.println(contextCache.report());
+    }
+  }
+}
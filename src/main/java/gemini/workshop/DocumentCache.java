@@ -0,0 +1,351 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.springframework.ai.document.Document;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+
+/**
+ * Binary cache of parsed and split documents, so a repeated run skips reading and splitting its inputs.
+ * An entry is keyed by the SHA-256 of the source content and of a configuration string naming the reader
+ * and the splitter with their settings: a changed file or setting is a miss, never a stale hit.
+ *
+ * An entry is one file holding the id, text and metadata of every document, length-prefixed UTF-8 and
+ * tagged values, written to a temporary file and moved into place so readers never see half an entry.
+ * It is read back through a memory-mapped file. Metadata values may be strings, numbers, booleans, and
+ * lists and maps of those; documents with media or other metadata values are not cached.
+ */
+public final class DocumentCache {
+
+  /** Entries read from the cache, entries loaded in this run, and entries which could not be written. */
+  public record CacheStats(long hits, long misses, long writeFailures) {}
+
+  private static final int MAGIC = 0x53414443;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 12;
+  // largest region mapped at a time, a document never spanning two regions
+  private static final long MAP_BYTES = 1L << 30;
+
+  private static final byte STRING = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte FLOAT = 5;
+  private static final byte BOOLEAN = 6;
+  private static final byte LIST = 7;
+  private static final byte MAP = 8;
+
+  private final Path directory;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder writeFailures = new LongAdder();
+
+  private DocumentCache(Path directory) {
+    this.directory = directory;
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      // entries are then neither found nor written, documents are loaded on every run
+      System.err.println("Document cache directory not created: " + e);
+    }
+  }
+
+  /** Opens the cache in the directory, creating it when missing. */
+  public static DocumentCache open(Path directory) {
+    return new DocumentCache(directory);
+  }
+
+  /** Opens the cache in document-cache under the temporary directory. */
+  public static DocumentCache open() {
+    return open(Path.of(System.getProperty("java.io.tmpdir"), "spring-ai-workshop", "document-cache"));
+  }
+
+  public List<Document> get(String resourceUrl, String configuration, Supplier<List<Document>> load) {
+    return get(new DefaultResourceLoader().getResource(resourceUrl), configuration, load);
+  }
+
+  /**
+   * Returns the cached documents of the source read with the configuration, or loads them and caches them.
+   * The configuration names everything the documents depend on besides the source; build it from the
+   * reader and splitter themselves, for example textReader + " | " + tokenTextSplitter, so it cannot
+   * drift from their settings. A cache which cannot be written, read-only or full, is skipped.
+   */
+  public List<Document> get(Resource source, String configuration, Supplier<List<Document>> load) {
+    Path file = directory.resolve(key(source, configuration) + ".docs");
+    if (Files.exists(file)) {
+      try {
+        List<Document> documents = read(file);
+        hits.increment();
+        return documents;
+      } catch (IOException | RuntimeException e) {
+        // cut short or from another version: loaded and written again
+      }
+    }
+    misses.increment();
+    List<Document> documents = load.get();
+    if (documents.stream().allMatch(DocumentCache::cacheable)) {
+      try {
+        write(file, documents);
+      } catch (UncheckedIOException e) {
+        // the documents are loaded all the same, the next run loads them again
+        writeFailures.increment();
+        System.err.println("Document cache entry not written: " + e.getCause());
+      }
+    }
+    return documents;
+  }
+
+  public CacheStats stats() {
+    return new CacheStats(hits.sum(), misses.sum(), writeFailures.sum());
+  }
+
+  private static List<Document> read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+        throw new IOException("Not a document cache entry: " + file);
+      }
+      int count = header.getInt();
+
+      List<Document> documents = new ArrayList<>(count);
+      ByteBuffer region = header;
+      long regionStart = 0;
+      long position = HEADER_BYTES;
+      for (int i = 0; i < count; i++) {
+        if (position + Integer.BYTES > regionStart + region.limit()) {
+          region = map(channel, position, Integer.BYTES, size);
+          regionStart = position;
+        }
+        int length = region.getInt((int) (position - regionStart));
+        if (position + Integer.BYTES + length > regionStart + region.limit()) {
+          region = map(channel, position, Integer.BYTES + (long) length, size);
+          regionStart = position;
+        }
+        documents.add(readDocument(region.slice((int) (position - regionStart) + Integer.BYTES, length)));
+        position += Integer.BYTES + length;
+      }
+      return documents;
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long needed, long size) throws IOException {
+    if (position + needed > size) {
+      throw new IOException("Document cache entry cut short");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(MAP_BYTES, needed), size - position));
+  }
+
+  private static Document readDocument(ByteBuffer record) {
+    String id = readString(record);
+    String text = readString(record);
+    int entries = record.getInt();
+    Map<String, Object> metadata = new HashMap<>(Math.max(4, entries * 2));
+    for (int i = 0; i < entries; i++) {
+      metadata.put(readString(record), readValue(record));
+    }
+    return new Document(id, text, metadata);
+  }
+
+  private static Object readValue(ByteBuffer record) {
+    byte tag = record.get();
+    return switch (tag) {
+      case STRING -> readString(record);
+      case INTEGER -> record.getInt();
+      case LONG -> record.getLong();
+      case DOUBLE -> record.getDouble();
+      case FLOAT -> record.getFloat();
+      case BOOLEAN -> record.get() != 0;
+      case LIST -> {
+        int size = record.getInt();
+        List<Object> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(record));
+        }
+        yield list;
+      }
+      case MAP -> {
+        int size = record.getInt();
+        Map<String, Object> map = new LinkedHashMap<>(Math.max(4, size * 2));
+        for (int i = 0; i < size; i++) {
+          map.put(readString(record), readValue(record));
+        }
+        yield map;
+      }
+      default -> throw new BufferUnderflowException();
+    };
+  }
+
+  private static String readString(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // one length-prefixed record per document, so the reader maps whole documents
+  private static void write(Path file, List<Document> documents) {
+    try {
+      Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(documents.size());
+          ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+          DataOutputStream record = new DataOutputStream(buffer);
+          for (Document document : documents) {
+            buffer.reset();
+            writeString(record, document.getId());
+            writeString(record, document.getText());
+            record.writeInt(document.getMetadata().size());
+            for (Map.Entry<String, Object> entry : document.getMetadata().entrySet()) {
+              writeString(record, entry.getKey());
+              writeValue(record, entry.getValue());
+            }
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+          }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot write the document cache entry " + file, e);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    switch (value) {
+      case String string -> {
+        out.writeByte(STRING);
+        writeString(out, string);
+      }
+      case Integer number -> {
+        out.writeByte(INTEGER);
+        out.writeInt(number);
+      }
+      case Long number -> {
+        out.writeByte(LONG);
+        out.writeLong(number);
+      }
+      case Double number -> {
+        out.writeByte(DOUBLE);
+        out.writeDouble(number);
+      }
+      case Float number -> {
+        out.writeByte(FLOAT);
+        out.writeFloat(number);
+      }
+      case Boolean bool -> {
+        out.writeByte(BOOLEAN);
+        out.writeByte(bool ? 1 : 0);
+      }
+      case List<?> list -> {
+        out.writeByte(LIST);
+        out.writeInt(list.size());
+        for (Object item : list) {
+          writeValue(out, item);
+        }
+      }
+      case Map<?, ?> map -> {
+        out.writeByte(MAP);
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          writeString(out, (String) entry.getKey());
+          writeValue(out, entry.getValue());
+        }
+      }
+      default -> throw new IllegalArgumentException("Cannot cache metadata of type " + value.getClass());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static boolean cacheable(Document document) {
+    return document.isText() && document.getMetadata().values().stream().allMatch(DocumentCache::cacheable);
+  }
+
+  private static boolean cacheable(Object value) {
+    return switch (value) {
+      case String s -> true;
+      case Integer i -> true;
+      case Long l -> true;
+      case Double d -> true;
+      case Float f -> true;
+      case Boolean b -> true;
+      case List<?> list -> list.stream().allMatch(item -> item != null && cacheable(item));
+      case Map<?, ?> map -> map.entrySet().stream()
+          .allMatch(entry -> entry.getKey() instanceof String && entry.getValue() != null && cacheable(entry.getValue()));
+      case null, default -> false;
+    };
+  }
+
+  // the source content is hashed as a stream, the file is not held in memory
+  public static String key(String resourceUrl, String configuration) {
+    return key(new DefaultResourceLoader().getResource(resourceUrl), configuration);
+  }
+
+  /**
+   * SHA-256 of the source content and the configuration, the key of the cached documents; also a key
+   * for data derived from them, such as their embeddings, changing whenever the documents would.
+   */
+  public static String key(Resource source, String configuration) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update((VERSION + "\0" + configuration + "\0").getBytes(StandardCharsets.UTF_8));
+      try (InputStream in = new DigestInputStream(source.getInputStream(), digest)) {
+        in.transferTo(OutputStream.nullOutputStream());
+      }
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read " + source, e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+
+/**
+ * Embeds a whole document, however long, as a single vector. The text is split into chunks below the
+ * input limit of the embedding model, the chunks are embedded in batches sent concurrently, and their
+ * vectors are pooled into the document vector: averaged, or weighted by their token counts so a short
+ * trailing chunk does not weigh as much as a full one. The pooled vector is scaled to unit length for
+ * cosine similarity. The chunks are returned with their own vectors, for retrieval of passages.
+ */
+public final class DocumentEmbedder {
+
+  public static final String CHUNK_INDEX_METADATA = "chunk_index";
+  public static final String CHUNK_TOKENS_METADATA = "chunk_tokens";
+  public static final String PARENT_DOCUMENT_ID_METADATA = "parent_document_id";
+
+  public enum Pooling { MEAN, TOKEN_WEIGHTED }
+
+  /** A chunk of the document, with its metadata, and its vector. */
+  public record ChunkEmbedding(Document chunk, float[] embedding, int tokens) {}
+
+  /** The pooled vector of the document, the vectors of its chunks, and the requests made for them. */
+  public record DocumentEmbedding(float[] embedding, List<ChunkEmbedding> chunks, int requests, long millis) {}
+
+  private final EmbeddingModel embeddingModel;
+  private final TextChunker chunker;
+  private final int batchSize;
+  private final int concurrency;
+  private final Pooling pooling;
+
+  private DocumentEmbedder(Builder builder) {
+    this.embeddingModel = builder.embeddingModel;
+    this.chunker = TextChunker.builder()
+        .chunkTokens(builder.chunkTokens)
+        .overlapTokens(builder.overlapTokens)
+        .build();
+    this.batchSize = builder.batchSize;
+    this.concurrency = builder.concurrency;
+    this.pooling = builder.pooling;
+  }
+
+  public static Builder builder(EmbeddingModel embeddingModel) {
+    return new Builder(embeddingModel);
+  }
+
+  public DocumentEmbedding embed(String text) {
+    return embed(new Document(text));
+  }
+
+  /** Embeds the chunks of the document, the chunks carrying its metadata plus their index and token count. */
+  public DocumentEmbedding embed(Document document) {
+    long start = System.currentTimeMillis();
+    List<TextChunker.Chunk> chunks = chunker.split(document.getText());
+    if (chunks.isEmpty()) {
+      throw new IllegalArgumentException("Nothing to embed in document " + document.getId());
+    }
+
+    List<List<TextChunker.Chunk>> batches = new ArrayList<>();
+    for (int i = 0; i < chunks.size(); i += batchSize) {
+      batches.add(chunks.subList(i, Math.min(i + batchSize, chunks.size())));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, batches.size()));
+    List<float[]> vectors = new ArrayList<>(chunks.size());
+    try {
+      List<CompletableFuture<List<float[]>>> requests = batches.stream()
+          .map(batch -> CompletableFuture.supplyAsync(
+              () -> embeddingModel.embed(batch.stream().map(TextChunker.Chunk::text).toList()), executor))
+          .toList();
+      // in chunk order, whatever order the batches complete in
+      for (CompletableFuture<List<float[]>> request : requests) {
+        vectors.addAll(request.join());
+      }
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    } finally {
+      executor.shutdownNow();
+    }
+
+    List<ChunkEmbedding> chunkEmbeddings = new ArrayList<>(chunks.size());
+    for (TextChunker.Chunk chunk : chunks) {
+      Map<String, Object> metadata = new HashMap<>(document.getMetadata());
+      metadata.put(PARENT_DOCUMENT_ID_METADATA, document.getId());
+      metadata.put(CHUNK_INDEX_METADATA, chunk.index());
+      metadata.put(CHUNK_TOKENS_METADATA, chunk.tokens());
+      chunkEmbeddings.add(new ChunkEmbedding(new Document(chunk.text(), metadata),
+          vectors.get(chunk.index()), chunk.tokens()));
+    }
+    return new DocumentEmbedding(pool(chunkEmbeddings), chunkEmbeddings, batches.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  private float[] pool(List<ChunkEmbedding> chunks) {
+    double[] sum = new double[chunks.getFirst().embedding().length];
+    for (ChunkEmbedding chunk : chunks) {
+      double weight = pooling == Pooling.TOKEN_WEIGHTED ? chunk.tokens() : 1;
+      float[] vector = chunk.embedding();
+      for (int i = 0; i < sum.length; i++) {
+        sum[i] += weight * vector[i];
+      }
+    }
+    // the mean and the sum point the same way, the unit vector of the sum is the pooled vector
+    double norm = 0;
+    for (double value : sum) {
+      norm += value * value;
+    }
+    norm = Math.sqrt(norm);
+    float[] pooled = new float[sum.length];
+    for (int i = 0; i < sum.length; i++) {
+      pooled[i] = norm == 0 ? 0 : (float) (sum[i] / norm);
+    }
+    return pooled;
+  }
+
+  public static final class Builder {
+    private final EmbeddingModel embeddingModel;
+    private int chunkTokens = 1_500;
+    private int overlapTokens = 0;
+    private int batchSize = 8;
+    private int concurrency = 4;
+    private Pooling pooling = Pooling.TOKEN_WEIGHTED;
+
+    private Builder(EmbeddingModel embeddingModel) {
+      this.embeddingModel = embeddingModel;
+    }
+
+    // below the 2,048 input tokens of text-embedding-004, counted with cl100k which differs slightly
+    public Builder chunkTokens(int chunkTokens) {
+      this.chunkTokens = chunkTokens;
+      return this;
+    }
+
+    // overlap makes better passages for retrieval, at the price of counting the overlap twice in the pooled vector
+    public Builder overlapTokens(int overlapTokens) {
+      this.overlapTokens = overlapTokens;
+      return this;
+    }
+
+    // chunks per request, within the per-request input and token limits of the model
+    public Builder batchSize(int batchSize) {
+      this.batchSize = Math.max(1, batchSize);
+      return this;
+    }
+
+    // requests in flight at once
+    public Builder concurrency(int concurrency) {
+      this.concurrency = Math.max(1, concurrency);
+      return this;
+    }
+
+    public Builder pooling(Pooling pooling) {
+      this.pooling = pooling;
+      return this;
+    }
+
+    public DocumentEmbedder build() {
+      return new DocumentEmbedder(this);
+    }
+  }
+}
@@ -15,21 +15,30 @@
  */
 package gemini.workshop;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.stream.Stream;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.reader.ExtractedTextFormatter;
 import org.springframework.ai.reader.JsonReader;
 import org.springframework.ai.reader.TextReader;
 import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
 import org.springframework.ai.reader.pdf.config.PdfDocumentReaderConfig;
-import org.springframework.ai.transformer.splitter.TokenTextSplitter;
 import org.springframework.core.io.ClassPathResource;
 
 public class DocumentProcessingExample {
-  public static void main(String[] args) {
+  private static final int PDF_PAGE_TOP_MARGIN = 0;
+  private static final int PDF_TOP_TEXT_LINES_TO_DELETE = 0;
+  private static final int PDF_PAGES_PER_DOCUMENT = 1;
+
+  public static void main(String[] args) throws IOException {
     // read Text in txt format
-    TextReader textReader = new TextReader("classpath:/the-jungle-book.txt");
-    String bookText = textReader.get().getFirst().getText();
+    // decoded once from the memory-mapped file, in windows of up to 1M characters;
+    // repeated runs read the documents back from the binary document cache instead
+    DocumentCache documentCache = DocumentCache.open();
+    MappedTextReader textReader = MappedTextReader.builder("classpath:/the-jungle-book.txt").build();
+    List<Document> book = documentCache.get("classpath:/the-jungle-book.txt", textReader.toString(), textReader::get);
+    String bookText = book.getFirst().getText();
     System.out.printf("Read book %s with length %d, CharSet %s\nExcerpt: %s ...\n\n\n",
         textReader.getCustomMetadata().get(TextReader.SOURCE_METADATA),
         bookText.length(),
@@ -50,22 +59,50 @@ public class DocumentProcessingExample {
           document.getText(),
           document.getText().length());
 
+    // Stream JSON documents
+    //--------------------
+    //    One document per array element, parsed as it is consumed: the heap stays constant
+    //    for multi-GB JSON arrays and JSON Lines (.jsonl) exports
+    try (Stream<Document> genres = StreamingJsonReader.builder(jsonUri)
+        .text("/genre", "/description")
+        .metadata("genre", "/genre")
+        .build()
+        .stream()) {
+      genres.forEach(document -> System.out.printf("Streamed JSON document %s with metadata %s\n",
+          document.getText().strip().replace(System.lineSeparator(), ", "),
+          document.getMetadata()));
+    }
+
     // Read PDF documents
     //--------------------
-    PagePdfDocumentReader pdfReader = new PagePdfDocumentReader("classpath:/attention-is-all-you-need.pdf",
-        PdfDocumentReaderConfig.builder()
-            .withPageTopMargin(0)
-            .withPageExtractedTextFormatter(ExtractedTextFormatter.builder()
-                .withNumberOfTopTextLinesToDelete(0)
-                .build())
-            .withPagesPerDocument(1)
-            .build());
-    List<Document> pdfDocument = pdfReader.read();
+    PdfDocumentReaderConfig pdfConfig = PdfDocumentReaderConfig.builder()
+        .withPageTopMargin(PDF_PAGE_TOP_MARGIN)
+        .withPageExtractedTextFormatter(ExtractedTextFormatter.builder()
+            .withNumberOfTopTextLinesToDelete(PDF_TOP_TEXT_LINES_TO_DELETE)
+            .build())
+        .withPagesPerDocument(PDF_PAGES_PER_DOCUMENT)
+        .build();
+    PagePdfDocumentReader pdfReader = new PagePdfDocumentReader("classpath:/attention-is-all-you-need.pdf", pdfConfig);
+    // the cache key names the same settings the reader was configured with
+    String pdfConfiguration = "PagePdfDocumentReader[pageTopMargin=" + PDF_PAGE_TOP_MARGIN
+        + ", topTextLinesToDelete=" + PDF_TOP_TEXT_LINES_TO_DELETE + ", pagesPerDocument=" + PDF_PAGES_PER_DOCUMENT + "]";
+    List<Document> pdfDocument = documentCache.get("classpath:/attention-is-all-you-need.pdf", pdfConfiguration,
+        pdfReader::read);
     for(Document document : pdfDocument)
       System.out.printf("Read PDF document %s ... with length %d\n",
           document.getText().trim().substring(0, 50),
           document.getText().length());
 
+    // same documents, the pages being extracted on all cores: pays off for PDFs of hundreds of pages
+    List<Document> parallelPdfDocument = ParallelPagePdfDocumentReader.builder("classpath:/attention-is-all-you-need.pdf")
+        .config(pdfConfig)
+        .build()
+        .read();
+    System.out.printf("Read %d PDF documents in parallel, same as sequential: %b\n",
+        parallelPdfDocument.size(),
+        parallelPdfDocument.stream().map(Document::getText).toList()
+            .equals(pdfDocument.stream().map(Document::getText).toList()));
+
 
     //Test splitting into chunks
     //---------------------------
@@ -78,8 +115,9 @@ public class DocumentProcessingExample {
     // 	private int minChunkLengthToEmbed = 5;
     // The maximum number of chunks to generate from a text
     // 	private int maxNumChunks = 10000;
-    TokenTextSplitter tokenTextSplitter = new TokenTextSplitter(5000, 100, 5, 100000, true);
-    List<Document> chunks = tokenTextSplitter.apply(textReader.get());
+    ParallelTokenTextSplitter tokenTextSplitter = new ParallelTokenTextSplitter(5000, 100, 5, 100000, true);
+    List<Document> chunks = documentCache.get("classpath:/the-jungle-book.txt",
+        textReader + " | " + tokenTextSplitter, () -> tokenTextSplitter.apply(book));
 
     System.out.println("Splitting document: " + textReader.getCustomMetadata().get(TextReader.SOURCE_METADATA));
     System.out.println("Chunks size: " + chunks.size());
@@ -88,5 +126,13 @@ public class DocumentProcessingExample {
           chunk.getText().substring(0, 25),
           chunk.getText().length());
 
+    // Drop near-duplicate chunks
+    //---------------------------
+    // chunks whose word shingles are 90% the same as those of a previous chunk are not worth embedding
+    NearDuplicateFilter nearDuplicateFilter = NearDuplicateFilter.builder().threshold(0.9).build();
+    List<Document> uniqueChunks = nearDuplicateFilter.apply(chunks);
+    System.out.println("Unique chunks: " + uniqueChunks.size());
+    System.out.println(nearDuplicateFilter.report());
+    System.out.println("Document cache: " + documentCache.stats());
   }
 }
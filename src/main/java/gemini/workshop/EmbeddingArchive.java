@@ -0,0 +1,323 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.VectorStore;
+
+/**
+ * Exports chunks and their embeddings to a directory of columnar files, and maps them back, so vectors
+ * computed by a batch job are shipped to serving nodes and loaded into a VectorStore without calling the
+ * embedding model again:
+ *
+ * embeddings.npy      float32 matrix, one row per chunk, in NumPy's .npy format
+ * text_offsets.npy    int64 offsets of the chunk texts in texts.bin, one more than there are chunks
+ * texts.bin           the chunk texts, UTF-8, one after the other
+ * metadata.jsonl      the id and metadata of every chunk, one JSON object per line
+ * manifest.json       embedding model, source key, dimensions and chunk count
+ *
+ * The .npy files load in NumPy with np.load(path, mmap_mode="r"). Here the vectors and texts are read
+ * straight from memory-mapped files: the vectors of a chunk are one bulk copy out of the mapping, and
+ * nothing is parsed but the metadata lines.
+ */
+public final class EmbeddingArchive implements AutoCloseable {
+
+  /**
+   * What the vectors were computed with, and from: vectors of another model or dimensions are not
+   * comparable, and the source key, for example a DocumentCache key, changes with the chunked documents.
+   */
+  public record Manifest(String model, String source, int dimensions, int count) {}
+
+  private record ChunkMetadata(String id, Map<String, Object> metadata) {}
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final byte[] NPY_MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+  private static final Pattern NPY_DESCR = Pattern.compile("'descr':\\s*'([^']+)'");
+  private static final Pattern NPY_SHAPE = Pattern.compile("'shape':\\s*\\(([^)]*)\\)");
+  // largest region mapped at a time, whole rows only
+  private static final long MAP_BYTES = 1L << 30;
+
+  private static final String EMBEDDINGS = "embeddings.npy";
+  private static final String TEXT_OFFSETS = "text_offsets.npy";
+  private static final String TEXTS = "texts.bin";
+  private static final String METADATA = "metadata.jsonl";
+  private static final String MANIFEST = "manifest.json";
+
+  private final Manifest manifest;
+  private final FileChannel embeddingsChannel;
+  private final FileChannel textsChannel;
+  private final List<ByteBuffer> embeddingRegions = new ArrayList<>();
+  private final int rowsPerRegion;
+  private final ByteBuffer textOffsets;
+  // null when the texts exceed a single mapping, they are then read at their offsets
+  private final ByteBuffer texts;
+  private final List<ChunkMetadata> metadata;
+
+  private EmbeddingArchive(Path directory) throws IOException {
+    this.manifest = readManifest(directory);
+    int dimensions = manifest.dimensions();
+    int count = manifest.count();
+
+    this.embeddingsChannel = FileChannel.open(directory.resolve(EMBEDDINGS), StandardOpenOption.READ);
+    this.textsChannel = FileChannel.open(directory.resolve(TEXTS), StandardOpenOption.READ);
+    try {
+      long dataStart = readNpyHeader(embeddingsChannel, "<f4", count, dimensions);
+      long rowBytes = (long) dimensions * Float.BYTES;
+      this.rowsPerRegion = (int) Math.max(1, MAP_BYTES / Math.max(1, rowBytes));
+      for (long row = 0; row < count; row += rowsPerRegion) {
+        long rows = Math.min(rowsPerRegion, count - row);
+        embeddingRegions.add(embeddingsChannel.map(FileChannel.MapMode.READ_ONLY, dataStart + row * rowBytes,
+            rows * rowBytes).order(ByteOrder.LITTLE_ENDIAN));
+      }
+
+      try (FileChannel offsets = FileChannel.open(directory.resolve(TEXT_OFFSETS), StandardOpenOption.READ)) {
+        long offsetsStart = readNpyHeader(offsets, "<i8", count + 1, -1);
+        this.textOffsets = offsets.map(FileChannel.MapMode.READ_ONLY, offsetsStart, (long) (count + 1) * Long.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+      }
+
+      long textBytes = textsChannel.size();
+      this.texts = textBytes <= Integer.MAX_VALUE
+          ? textsChannel.map(FileChannel.MapMode.READ_ONLY, 0, textBytes)
+          : null;
+
+      this.metadata = new ArrayList<>(count);
+      try (BufferedReader reader = Files.newBufferedReader(directory.resolve(METADATA), StandardCharsets.UTF_8)) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          metadata.add(OBJECT_MAPPER.readValue(line, ChunkMetadata.class));
+        }
+      }
+      if (metadata.size() != count) {
+        throw new IOException("Expected " + count + " metadata lines in " + directory + ", got " + metadata.size());
+      }
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /** Maps the archive in the directory. Close it to release the files. */
+  public static EmbeddingArchive open(Path directory) throws IOException {
+    return new EmbeddingArchive(directory);
+  }
+
+  /** Writes the documents and their vectors, in the same order, to the directory. */
+  public static void write(Path directory, String model, String source, List<Document> documents,
+      List<float[]> embeddings) throws IOException {
+    if (documents.size() != embeddings.size() || documents.isEmpty()) {
+      throw new IllegalArgumentException("Expected one vector per document, got " + embeddings.size()
+          + " vectors for " + documents.size() + " documents");
+    }
+    int dimensions = embeddings.getFirst().length;
+    Files.createDirectories(directory);
+    // an archive being rewritten is incomplete until its new manifest is written
+    Files.deleteIfExists(directory.resolve(MANIFEST));
+
+    try (FileChannel out = FileChannel.open(directory.resolve(EMBEDDINGS), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      writeNpyHeader(out, "<f4", documents.size() + ", " + dimensions);
+      ByteBuffer rows = ByteBuffer.allocate(Math.max(dimensions * Float.BYTES, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+      for (float[] embedding : embeddings) {
+        if (embedding.length != dimensions) {
+          throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + embedding.length);
+        }
+        if (rows.remaining() < dimensions * Float.BYTES) {
+          drain(out, rows);
+        }
+        rows.asFloatBuffer().put(embedding);
+        rows.position(rows.position() + dimensions * Float.BYTES);
+      }
+      drain(out, rows);
+    }
+
+    try (FileChannel texts = FileChannel.open(directory.resolve(TEXTS), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+         FileChannel offsets = FileChannel.open(directory.resolve(TEXT_OFFSETS), StandardOpenOption.CREATE,
+             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+         BufferedWriter metadata = Files.newBufferedWriter(directory.resolve(METADATA), StandardCharsets.UTF_8)) {
+      writeNpyHeader(offsets, "<i8", (documents.size() + 1) + ",");
+      ByteBuffer offsetBuffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+      long offset = 0;
+      offsetBuffer.putLong(offset);
+      for (Document document : documents) {
+        byte[] text = document.getText() == null ? new byte[0] : document.getText().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bytes = ByteBuffer.wrap(text);
+        while (bytes.hasRemaining()) {
+          texts.write(bytes);
+        }
+        offset += text.length;
+        if (!offsetBuffer.hasRemaining()) {
+          drain(offsets, offsetBuffer);
+        }
+        offsetBuffer.putLong(offset);
+        metadata.write(OBJECT_MAPPER.writeValueAsString(new ChunkMetadata(document.getId(), document.getMetadata())));
+        metadata.newLine();
+      }
+      drain(offsets, offsetBuffer);
+    }
+
+    // written last: an archive without a manifest is incomplete
+    OBJECT_MAPPER.writeValue(directory.resolve(MANIFEST).toFile(), new Manifest(model, source, dimensions, documents.size()));
+  }
+
+  /** True when the directory holds a complete archive. */
+  public static boolean exists(Path directory) {
+    return Files.exists(directory.resolve(MANIFEST));
+  }
+
+  /** The manifest of the archive in the directory, read alone, without mapping the archive. */
+  public static Manifest readManifest(Path directory) throws IOException {
+    return OBJECT_MAPPER.readValue(directory.resolve(MANIFEST).toFile(), Manifest.class);
+  }
+
+  public Manifest manifest() {
+    return manifest;
+  }
+
+  public int size() {
+    return manifest.count();
+  }
+
+  /** The vector of the chunk, copied in bulk from the mapped file. */
+  public float[] embedding(int index) {
+    float[] embedding = new float[manifest.dimensions()];
+    ByteBuffer region = embeddingRegions.get(index / rowsPerRegion);
+    region.asFloatBuffer().get((index % rowsPerRegion) * manifest.dimensions(), embedding);
+    return embedding;
+  }
+
+  public Document document(int index) {
+    long start = textOffsets.getLong(index * Long.BYTES);
+    long end = textOffsets.getLong((index + 1) * Long.BYTES);
+    ByteBuffer text = ByteBuffer.allocate(Math.toIntExact(end - start));
+    if (texts != null) {
+      texts.get((int) start, text.array());
+    } else {
+      try {
+        while (text.hasRemaining()) {
+          if (textsChannel.read(text, start + text.position()) < 0) {
+            throw new IOException("Texts of the embedding archive cut short");
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    ChunkMetadata chunk = metadata.get(index);
+    return new Document(chunk.id(), new String(text.array(), StandardCharsets.UTF_8), new HashMap<>(chunk.metadata()));
+  }
+
+  public List<Document> documents() {
+    List<Document> documents = new ArrayList<>(size());
+    for (int i = 0; i < size(); i++) {
+      documents.add(document(i));
+    }
+    return documents;
+  }
+
+  /**
+   * Adds every chunk to the vector store with its archived vector. The store must have been built with
+   * the embedding model given here, which serves the archived vectors and embeds the queries.
+   */
+  public List<Document> addTo(VectorStore vectorStore, PrecomputedEmbeddingModel embeddingModel) {
+    List<Document> documents = documents();
+    for (int i = 0; i < documents.size(); i++) {
+      embeddingModel.put(documents.get(i), embedding(i));
+    }
+    vectorStore.add(documents);
+    return documents;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (embeddingsChannel != null) {
+        embeddingsChannel.close();
+      }
+    } finally {
+      if (textsChannel != null) {
+        textsChannel.close();
+      }
+    }
+  }
+
+  private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  // .npy version 1.0: magic, version, little-endian header length, then a Python dict padded to 64 bytes
+  private static void writeNpyHeader(FileChannel out, String descr, String shape) throws IOException {
+    String dict = "{'descr': '" + descr + "', 'fortran_order': False, 'shape': (" + shape + "), }";
+    int unpadded = NPY_MAGIC.length + 4 + dict.length() + 1;
+    String header = dict + " ".repeat((unpadded + 63) / 64 * 64 - unpadded) + "\n";
+    ByteBuffer buffer = ByteBuffer.allocate(NPY_MAGIC.length + 4 + header.length()).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put(NPY_MAGIC).put((byte) 1).put((byte) 0).putShort((short) header.length())
+        .put(header.getBytes(StandardCharsets.ISO_8859_1));
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  // checks the type and shape, returns where the data starts; columns of -1 for a one-dimension array
+  private static long readNpyHeader(FileChannel in, String descr, int rows, int columns) throws IOException {
+    ByteBuffer prefix = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    in.read(prefix, 0);
+    byte[] magic = new byte[NPY_MAGIC.length];
+    prefix.get(0, magic);
+    if (!Arrays.equals(magic, NPY_MAGIC)) {
+      throw new IOException("Not a .npy file");
+    }
+    int major = prefix.get(6);
+    long headerLength = major == 1 ? prefix.getShort(8) & 0xffff : prefix.getInt(8) & 0xffffffffL;
+    long headerStart = major == 1 ? 10 : 12;
+    ByteBuffer header = ByteBuffer.allocate(Math.toIntExact(headerLength));
+    in.read(header, headerStart);
+    String dict = new String(header.array(), StandardCharsets.ISO_8859_1);
+
+    Matcher type = NPY_DESCR.matcher(dict);
+    Matcher shape = NPY_SHAPE.matcher(dict);
+    String expectedShape = columns < 0 ? String.valueOf(rows) : rows + "," + columns;
+    if (!type.find() || !type.group(1).equals(descr) || dict.contains("'fortran_order': True")
+        || !shape.find() || !shape.group(1).replace(" ", "").replaceAll(",$", "").equals(expectedShape)) {
+      throw new IOException("Expected a " + descr + " array of shape (" + expectedShape + "), got " + dict.strip());
+    }
+    return headerStart + headerLength;
+  }
+}
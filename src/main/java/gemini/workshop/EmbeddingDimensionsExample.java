@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.List;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.google.genai.GoogleGenAiEmbeddingConnectionDetails;
+import org.springframework.ai.google.genai.text.GoogleGenAiTextEmbeddingModel;
+import org.springframework.ai.google.genai.text.GoogleGenAiTextEmbeddingOptions;
+import org.springframework.ai.reader.TextReader;
+
+/**
+ * Embeddings with fewer dimensions: the output dimensionality option of text-embedding-004, and a
+ * local PCA projection learned from a sample of the corpus, with the retrieval recall kept at every
+ * dimension count.
+ */
+public class EmbeddingDimensionsExample {
+  private static final int TOP_K = 5;
+
+  public static void main(String[] args) {
+    boolean useVertexAi = Boolean.parseBoolean(System.getenv("USE_VERTEX_AI"));
+    GoogleGenAiEmbeddingConnectionDetails connectionDetails;
+    if (useVertexAi) {
+        connectionDetails = GoogleGenAiEmbeddingConnectionDetails.builder()
+            .projectId(System.getenv("GOOGLE_CLOUD_PROJECT"))
+            .location(System.getenv("GOOGLE_CLOUD_LOCATION"))
+            .build();
+    } else {
+        connectionDetails = GoogleGenAiEmbeddingConnectionDetails.builder()
+            .apiKey(System.getenv("GOOGLE_API_KEY"))
+            .build();
+    }
+
+    // full vectors, 768 dimensions
+    var embeddingModel = new GoogleGenAiTextEmbeddingModel(connectionDetails,
+        GoogleGenAiTextEmbeddingOptions.builder()
+            .model("text-embedding-004")
+            .build());
+
+    // reduced by the model: the first 256 dimensions, text-embedding-004 being trained for truncation
+    var reducedEmbeddingModel = new GoogleGenAiTextEmbeddingModel(connectionDetails,
+        GoogleGenAiTextEmbeddingOptions.builder()
+            .model("text-embedding-004")
+            .dimensions(256)
+            .build());
+    float[] reduced = reducedEmbeddingModel.embed("Mowgli is raised by wolves in the jungle.");
+    System.out.println("Embedding with output dimensionality 256: " + reduced.length + " dimensions");
+
+    // the corpus: passages of the book, embedded in concurrent batches
+    Document book = new TextReader("classpath:/the-jungle-book.txt").get().getFirst();
+    long start = System.currentTimeMillis();
+    List<float[]> corpus = DocumentEmbedder.builder(embeddingModel)
+        .chunkTokens(100)
+        .batchSize(50)
+        .build()
+        .embed(book)
+        .chunks().stream()
+        .map(DocumentEmbedder.ChunkEmbedding::embedding)
+        .toList();
+    System.out.printf("Embedded %d passages with %d dimensions in %d ms%n",
+        corpus.size(), corpus.getFirst().length, System.currentTimeMillis() - start);
+
+    List<float[]> queries = embeddingModel.embed(List.of(
+        "Who raises Mowgli?",
+        "How does Mowgli defeat Shere Khan?",
+        "What does Baloo teach Mowgli?",
+        "Where do the Bandar-log take Mowgli?",
+        "How does Kaa help rescue Mowgli?",
+        "Who is Rikki-tikki-tavi and whom does he fight?",
+        "What happens to the white seal Kotick?",
+        "What does Toomai see at the elephant dance?",
+        "Why does Mowgli leave the wolf pack?",
+        "What is the Law of the Jungle?"));
+
+    // components learned from half of the corpus, the other passages are unseen by the projection
+    start = System.currentTimeMillis();
+    PcaProjection pca = PcaProjection.fit(corpus.subList(0, corpus.size() / 2), 256);
+    System.out.printf("PCA with %d components keeps %.1f%% of the variance, learned in %d ms%n",
+        pca.dimensions(), 100 * pca.explainedVariance(), System.currentTimeMillis() - start);
+
+    // recall of the full top 5 passages, for every dimension count
+    List<EmbeddingRecall.DimensionRecall> recall = EmbeddingRecall.measure(corpus, queries, pca, TOP_K,
+        768, 512, 256, 128, 64, 32);
+    System.out.print(EmbeddingRecall.format(recall, TOP_K));
+
+    // to store reduced vectors, give the projecting model to the vector store:
+    // SimpleVectorStore.builder(pca.wrap(embeddingModel)).build()
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Measures what reducing the dimensions of embeddings costs in retrieval quality, and what it saves.
+ * For every dimension count, the corpus and the queries are reduced by truncation, keeping the first
+ * dimensions as the output dimensionality option of Matryoshka-trained models does, and by a PCA
+ * projection. The top-k of an exact cosine search over the reduced vectors is compared with the top-k
+ * over the full vectors: recall@k is the share of the full top-k found.
+ */
+public final class EmbeddingRecall {
+
+  /** Recall@k of truncation and PCA at a dimension count, with the bytes of a vector and the search time. */
+  public record DimensionRecall(int dimensions, double truncationRecall, double pcaRecall, int vectorBytes,
+      double searchMicros) {}
+
+  private EmbeddingRecall() {
+  }
+
+  /** One row per dimension count; pca needs at least as many components as the largest count. */
+  public static List<DimensionRecall> measure(List<float[]> corpus, List<float[]> queries, PcaProjection pca,
+      int topK, int... dimensions) {
+    List<int[]> expected = queries.stream().map(query -> search(corpus, query, topK)).toList();
+    List<DimensionRecall> rows = new ArrayList<>(dimensions.length);
+    for (int count : dimensions) {
+      UnaryOperator<float[]> truncate = vector -> truncate(vector, count);
+      UnaryOperator<float[]> project = vector -> pca.project(vector, count);
+
+      List<float[]> truncatedCorpus = corpus.stream().map(truncate).toList();
+      long start = System.nanoTime();
+      double truncationRecall = recall(truncatedCorpus, queries.stream().map(truncate).toList(), expected, topK);
+      double searchMicros = (System.nanoTime() - start) / 1_000.0 / Math.max(1, queries.size());
+      double pcaRecall = count > pca.dimensions() ? Double.NaN
+          : recall(corpus.stream().map(project).toList(), queries.stream().map(project).toList(), expected, topK);
+      rows.add(new DimensionRecall(count, truncationRecall, pcaRecall, count * Float.BYTES, searchMicros));
+    }
+    return rows;
+  }
+
+  public static String format(List<DimensionRecall> rows, int topK) {
+    StringBuilder report = new StringBuilder(String.format(
+        "%10s %14s %14s %12s %14s%n", "dimensions", "truncation@" + topK, "pca@" + topK, "bytes/vector", "us/query"));
+    for (DimensionRecall row : rows) {
+      report.append(String.format("%10d %14.3f %14.3f %12d %14.1f%n", row.dimensions(), row.truncationRecall(),
+          row.pcaRecall(), row.vectorBytes(), row.searchMicros()));
+    }
+    return report.toString();
+  }
+
+  /** The first dimensions of the vector, scaled back to unit length. */
+  public static float[] truncate(float[] vector, int dimensions) {
+    float[] truncated = Arrays.copyOf(vector, Math.min(dimensions, vector.length));
+    double norm = 0;
+    for (float value : truncated) {
+      norm += value * value;
+    }
+    if (norm > 0) {
+      float scale = (float) (1 / Math.sqrt(norm));
+      for (int i = 0; i < truncated.length; i++) {
+        truncated[i] *= scale;
+      }
+    }
+    return truncated;
+  }
+
+  private static double recall(List<float[]> corpus, List<float[]> queries, List<int[]> expected, int topK) {
+    long found = 0;
+    for (int q = 0; q < queries.size(); q++) {
+      int[] actual = search(corpus, queries.get(q), topK);
+      for (int index : actual) {
+        for (int relevant : expected.get(q)) {
+          if (index == relevant) {
+            found++;
+            break;
+          }
+        }
+      }
+    }
+    return (double) found / Math.max(1, (long) queries.size() * Math.min(topK, corpus.size()));
+  }
+
+  // exact search, as SimpleVectorStore does: the indexes of the topK most cosine-similar vectors
+  private static int[] search(List<float[]> corpus, float[] query, int topK) {
+    int k = Math.min(topK, corpus.size());
+    int[] best = new int[k];
+    double[] scores = new double[k];
+    Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+    for (int index = 0; index < corpus.size(); index++) {
+      double score = cosine(corpus.get(index), query);
+      if (score > scores[k - 1]) {
+        int position = k - 1;
+        while (position > 0 && scores[position - 1] < score) {
+          scores[position] = scores[position - 1];
+          best[position] = best[position - 1];
+          position--;
+        }
+        scores[position] = score;
+        best[position] = index;
+      }
+    }
+    return best;
+  }
+
+  private static double cosine(float[] a, float[] b) {
+    double dot = 0;
+    double normA = 0;
+    double normB = 0;
+    for (int i = 0; i < a.length; i++) {
+      dot += a[i] * b[i];
+      normA += a[i] * a[i];
+      normB += b[i] * b[i];
+    }
+    return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+  }
+}
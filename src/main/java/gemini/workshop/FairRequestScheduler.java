@@ -0,0 +1,204 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Shared worker pool for model requests coming from many documents at once.
+ * Requests are queued per document and the workers serve the documents round-robin, one request
+ * each in turn, so a thousand-chunk book cannot starve the small files queued behind it.
+ * Every request first goes through a global limiter on requests and tokens per minute,
+ * keeping the whole batch within the project quota instead of bouncing on 429 errors.
+ */
+public final class FairRequestScheduler implements AutoCloseable {
+
+  // the request and the future it completes, failed when the request is dropped unsent
+  private record Task(long tokens, Runnable run, CompletableFuture<?> result) {}
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition workAvailable = lock.newCondition();
+  // guarded by lock: pending requests per document, and the documents with pending requests in serving order
+  private final Map<String, Deque<Task>> queues = new HashMap<>();
+  private final Deque<String> ready = new ArrayDeque<>();
+  private boolean closed;
+
+  private final List<Thread> workers = new ArrayList<>();
+  private final double tokensPerMinute;
+  private final long requestIntervalNanos;
+  // guarded by this: token bucket, negative while in debt, and the start time of the next request
+  private double tokenBalance;
+  private long lastRefillNanos = System.nanoTime();
+  private long nextRequestNanos = System.nanoTime();
+
+  private FairRequestScheduler(Builder builder) {
+    this.tokensPerMinute = builder.tokensPerMinute;
+    this.tokenBalance = builder.tokensPerMinute;
+    this.requestIntervalNanos = TimeUnit.MINUTES.toNanos(1) / builder.requestsPerMinute;
+    for (int i = 0; i < builder.concurrency; i++) {
+      workers.add(Thread.ofVirtual().name("fair-scheduler-", i).start(this::work));
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Queues a request of the given document, costing about the given number of tokens against the quota. */
+  public <T> CompletableFuture<T> submit(String document, long tokens, Supplier<T> request) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Task task = new Task(tokens, () -> {
+      try {
+        result.complete(request.get());
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      }
+    }, result);
+
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Scheduler is closed");
+      }
+      Deque<Task> queue = queues.computeIfAbsent(document, key -> new ArrayDeque<>());
+      if (queue.isEmpty()) {
+        ready.addLast(document);
+      }
+      queue.addLast(task);
+      workAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+    return result;
+  }
+
+  // lets the queued requests finish, then stops the workers; an interrupted caller stops waiting for them
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      workAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      for (Thread worker : workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void work() {
+    while (true) {
+      Task task = next();
+      if (task == null) {
+        return;
+      }
+      try {
+        long waitNanos = reserve(task.tokens());
+        if (waitNanos > 0) {
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+      } catch (InterruptedException e) {
+        // the worker stops, the request it dequeued is not sent: fail it rather than leave its caller waiting
+        task.result().completeExceptionally(e);
+        Thread.currentThread().interrupt();
+        return;
+      }
+      task.run().run();
+    }
+  }
+
+  // round-robin over the documents: take one request, requeue the document behind the others
+  private Task next() {
+    lock.lock();
+    try {
+      while (ready.isEmpty()) {
+        if (closed) {
+          return null;
+        }
+        workAvailable.awaitUninterruptibly();
+      }
+      String document = ready.pollFirst();
+      Deque<Task> queue = queues.get(document);
+      Task task = queue.pollFirst();
+      if (queue.isEmpty()) {
+        queues.remove(document);
+      } else {
+        ready.addLast(document);
+      }
+      return task;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // books the request slot and its tokens, returns how long to wait before sending it
+  private synchronized long reserve(long tokens) {
+    long now = System.nanoTime();
+    tokenBalance = Math.min(tokensPerMinute,
+        tokenBalance + (now - lastRefillNanos) * tokensPerMinute / TimeUnit.MINUTES.toNanos(1));
+    lastRefillNanos = now;
+    tokenBalance -= Math.min(tokens, (long) tokensPerMinute);
+    long tokenWait = tokenBalance >= 0 ? 0 : (long) (-tokenBalance * TimeUnit.MINUTES.toNanos(1) / tokensPerMinute);
+
+    long requestAt = Math.max(now, nextRequestNanos);
+    nextRequestNanos = requestAt + requestIntervalNanos;
+    return Math.max(tokenWait, requestAt - now);
+  }
+
+  public static final class Builder {
+    private int concurrency = 8;
+    private int requestsPerMinute = 300;
+    private int tokensPerMinute = 1_000_000;
+
+    private Builder() {
+    }
+
+    // requests in flight at once, across all documents
+    public Builder concurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    public Builder requestsPerMinute(int requestsPerMinute) {
+      this.requestsPerMinute = requestsPerMinute;
+      return this;
+    }
+
+    public Builder tokensPerMinute(int tokensPerMinute) {
+      this.tokensPerMinute = tokensPerMinute;
+      return this;
+    }
+
+    public FairRequestScheduler build() {
+      return new FairRequestScheduler(this);
+    }
+  }
+}
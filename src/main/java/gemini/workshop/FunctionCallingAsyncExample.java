@@ -1,50 +1,45 @@
 package gemini.workshop;
 
 import com.fasterxml.jackson.annotation.JsonClassDescription;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
 import com.google.genai.Client;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
-import org.springframework.ai.chat.messages.Message;
-import org.springframework.ai.chat.prompt.Prompt;
-import org.springframework.ai.chat.prompt.PromptTemplate;
-import org.springframework.ai.tool.function.FunctionToolCallback;
-import org.springframework.ai.google.genai.GoogleGenAiChatModel;
-import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
 
 public class FunctionCallingAsyncExample {
 
   @JsonClassDescription("Get the weather in a location")
-  public static class WeatherService implements Function<WeatherService.Request, WeatherService.Response> {
+  public static class WeatherService implements Function<WeatherService.Request, CompletableFuture<WeatherService.Response>> {
     public record Request(
         @JsonProperty(required = true, value = "location") @JsonPropertyDescription("The city and state, e.g. San Francisco, CA") String location,
         @JsonProperty(required = true, value = "unit") @JsonPropertyDescription("The unit of temperature, e.g. celsius or fahrenheit") String unit) {}
     public record Response(String weather) {}
 
     @Override
-    public Response apply(Request request) {
+    public CompletableFuture<Response> apply(Request request) {
       System.out.printf("Function Call: Called getCurrentWeather(%s, %s)\n", request.location(), request.unit());
-      return new Response("The weather in " + request.location() + " is very nice.");
+      // simulate a remote weather API: the response arrives later, no thread waits for it
+      return CompletableFuture.supplyAsync(
+          () -> new Response("The weather in " + request.location() + " is very nice."),
+          CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS));
     }
   }
 
   @JsonClassDescription("Divide two integers")
-  public static class DivisionService implements Function<DivisionService.Request, DivisionService.Response> {
+  public static class DivisionService implements Function<DivisionService.Request, CompletableFuture<DivisionService.Response>> {
     public record Request(
         @JsonProperty(required = true, value = "numerator") @JsonPropertyDescription("The numerator") int numerator,
         @JsonProperty(required = true, value = "denominator") @JsonPropertyDescription("The denominator") int denominator) {}
     public record Response(int result) {}
 
     @Override
-    public Response apply(Request request) {
+    public CompletableFuture<Response> apply(Request request) {
       System.out.printf("Function Call: Called divideTwoIntegers(%d, %d)\n", request.numerator(), request.denominator());
-      return new Response(request.numerator() / request.denominator());
+      return CompletableFuture.completedFuture(new Response(request.numerator() / request.denominator()));
     }
   }
 
@@ -64,39 +59,40 @@ public class FunctionCallingAsyncExample {
           .build();
     }
 
-    FunctionToolCallback weatherTool = FunctionToolCallback.builder("getCurrentWeather", new WeatherService())
-        .description("Get the weather in a location")
-        .inputType(WeatherService.Request.class)
-        .build();
-    FunctionToolCallback divisionTool = FunctionToolCallback.builder("divideTwoIntegers", new DivisionService())
-        .description("Divide two integers")
-        .inputType(DivisionService.Request.class)
+    // derive the function declarations once, at startup
+    ToolSchemaRegistry toolSchemas = ToolSchemaRegistry.builder()
+        .register("getCurrentWeather", "Get the weather in a location", WeatherService.Request.class)
+        .register("divideTwoIntegers", "Divide two integers", DivisionService.Request.class)
         .build();
 
-    var geminiChatModel = GoogleGenAiChatModel.builder()
-        .genAiClient(client)
-        .defaultOptions(GoogleGenAiChatOptions.builder()
-            .model(System.getenv("GEMINI_MODEL"))
-            .temperature(0.2)
-            .toolCallbacks(List.of(weatherTool, divisionTool))
-            .build())
+    // model calls go through client.async and tools return CompletableFutures:
+    // no thread is blocked while a conversation waits on the model or on a tool
+    AsyncToolCallingChat chat = AsyncToolCallingChat.builder(client, System.getenv("GEMINI_MODEL"), toolSchemas)
+        .tool("getCurrentWeather", new WeatherService())
+        .tool("divideTwoIntegers", new DivisionService())
+        .temperature(0.2f)
         .build();
 
-    String userText = "What is the weather in Vancouver? And can you divide 10 by 2?";
-    Message userMessage = new PromptTemplate(userText).createMessage();
+    List<String> questions = List.of(
+        "What is the weather in Vancouver? And can you divide 10 by 2?",
+        "What is the weather in Paris, in celsius?",
+        "Can you divide 144 by 12?");
 
     long start = System.currentTimeMillis();
-    System.out.println("Starting Async Call...");
+    System.out.println("Starting Async Calls...");
 
-    CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> 
-        geminiChatModel.call(new Prompt(userMessage)).getResult().getOutput().getText()
-    );
+    List<CompletableFuture<String>> futures = questions.stream()
+        .map(chat::call)
+        .toList();
 
     // Do other work here if needed
-    System.out.println("Async call initiated, doing other work...");
+    System.out.println(futures.size() + " async conversations in flight, doing other work...");
 
-    String response = future.get();
-    System.out.println("GEMINI Response: " + response);
-    System.out.println("Google GenAI Gemini Async call took " + (System.currentTimeMillis() - start) + " ms");
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+    for (int i = 0; i < questions.size(); i++) {
+      System.out.println("Question: " + questions.get(i));
+      System.out.println("GEMINI Response: " + futures.get(i).get());
+    }
+    System.out.println("Google GenAI Gemini Async calls took " + (System.currentTimeMillis() - start) + " ms");
   }
 }
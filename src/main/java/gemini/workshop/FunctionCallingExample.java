@@ -21,6 +21,9 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
 import com.google.genai.Client;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
@@ -99,18 +102,27 @@ public class FunctionCallingExample {
     Message userMessage = userPromptTemplate.createMessage();
 
     // build a FunctionCallbackWrapper to regisater the BookStoreService
-    // as a function
-    FunctionToolCallback fnWrapper = FunctionToolCallback.builder("bookStoreAvailability", new BookStoreService())
-        .description("Get availability of a book in the bookstore")
-        .inputType(BookStoreService.Request.class)
+    // as a function; availability changes slowly, so cache it briefly by title and author
+    CachingToolCallback fnWrapper = CachingToolCallback.idempotent(
+        FunctionToolCallback.builder("bookStoreAvailability", new BookStoreService())
+            .description("Get availability of a book in the bookstore")
+            .inputType(BookStoreService.Request.class)
+            .build())
+        .ttl(Duration.ofMinutes(1))
+        .maxEntries(500)
         .build();
 
+    // record the latency, error rate and payload sizes of the tool
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    InstrumentedToolCallback instrumentedTool =
+        InstrumentedToolCallback.instrument(fnWrapper, meterRegistry, ObservationRegistry.NOOP);
+
     var geminiChatModel = GoogleGenAiChatModel.builder()
         .genAiClient(client)
         .defaultOptions(GoogleGenAiChatOptions.builder()
             .model(System.getenv("GEMINI_MODEL"))
             .temperature(0.2)
-            .toolCallbacks(List.of(fnWrapper))
+            .toolCallbacks(List.of(instrumentedTool))
             .build())
         .build();
 
@@ -120,5 +132,7 @@ public class FunctionCallingExample {
         .getResult().getOutput().getText());
     System.out.println(
         "Google GenAI Gemini call with FunctionCalling took " + (System.currentTimeMillis() - start) + " ms");
+    System.out.println("Tool cache stats: " + fnWrapper.stats());
+    System.out.print("Tool metrics:\n" + InstrumentedToolCallback.report(meterRegistry));
   }
 }
@@ -6,6 +6,11 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
 import com.google.genai.Client;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.observation.ObservationTextPublisher;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
@@ -13,9 +18,9 @@ import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.chat.prompt.PromptTemplate;
 import org.springframework.ai.chat.prompt.SystemPromptTemplate;
-import org.springframework.ai.tool.function.FunctionToolCallback;
 import org.springframework.ai.google.genai.GoogleGenAiChatModel;
 import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
+import org.springframework.ai.tool.ToolCallback;
 
 public class FunctionCallingMultipleExample {
 
@@ -77,35 +82,72 @@ public class FunctionCallingMultipleExample {
           .build();
     }
 
-    FunctionToolCallback weatherTool = FunctionToolCallback.builder("getCurrentWeather", new WeatherService())
-        .description("Get the weather in a location")
-        .inputType(WeatherService.Request.class)
+    // derive the tool schemas once, at startup
+    ToolSchemaRegistry toolSchemas = ToolSchemaRegistry.builder()
+        .register("getCurrentWeather", "Get the weather in a location", WeatherService.Request.class)
+        .register("divideTwoIntegers", "Divide two integers", DivisionService.Request.class)
+        .register("sumInts", "Sum a list of integers", SumService.Request.class)
         .build();
-    FunctionToolCallback divisionTool = FunctionToolCallback.builder("divideTwoIntegers", new DivisionService())
-        .description("Divide two integers")
-        .inputType(DivisionService.Request.class)
+
+    // all three functions are idempotent: cache their results by arguments
+    CachingToolCallback weatherTool = CachingToolCallback.idempotent(
+            toolSchemas.toolCallback("getCurrentWeather", new WeatherService()))
+        .ttl(Duration.ofMinutes(10))
+        .build();
+    CachingToolCallback divisionTool = CachingToolCallback.idempotent(
+            toolSchemas.toolCallback("divideTwoIntegers", new DivisionService()))
+        .ttl(Duration.ofHours(1))
         .build();
-    FunctionToolCallback sumTool = FunctionToolCallback.builder("sumInts", new SumService())
-        .description("Sum a list of integers")
-        .inputType(SumService.Request.class)
+    CachingToolCallback sumTool = CachingToolCallback.idempotent(
+            toolSchemas.toolCallback("sumInts", new SumService()))
+        .ttl(Duration.ofHours(1))
+        .build();
+
+    // per-tool latency, error rate and payload size meters, plus a span for every tool call;
+    // swap in an OTLP meter registry and an OpenTelemetry tracing handler to export them
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    ObservationRegistry observationRegistry = ObservationRegistry.create();
+    observationRegistry.observationConfig().observationHandler(new ObservationTextPublisher());
+    List<ToolCallback> tools = InstrumentedToolCallback.instrumentAll(
+        List.of(weatherTool, divisionTool, sumTool), meterRegistry, observationRegistry);
+
+    // run the function calls of a model turn concurrently, the turn costs the slowest tool
+    ParallelToolCallingManager toolCallingManager = ParallelToolCallingManager.builder()
+        .defaultTimeout(Duration.ofSeconds(10))
+        .toolTimeout("getCurrentWeather", Duration.ofSeconds(5))
         .build();
 
     var geminiChatModel = GoogleGenAiChatModel.builder()
         .genAiClient(client)
+        .toolCallingManager(toolCallingManager)
+        .observationRegistry(observationRegistry)
         .defaultOptions(GoogleGenAiChatOptions.builder()
             .model(System.getenv("GEMINI_MODEL"))
             .temperature(0.2)
-            .toolCallbacks(List.of(weatherTool, divisionTool, sumTool))
+            .toolCallbacks(tools)
             .build())
         .build();
 
     String userText = "What is the weather in Vancouver? And can you divide 10 by 2? And can you sum the integers 1, 2, 3, 4, and 5?";
     Message userMessage = new PromptTemplate(userText).createMessage();
 
+    // the turn observation is the parent of both the model calls and the tool calls
+    Observation turn = Observation.createNotStarted("gen_ai.function_calling.turn", observationRegistry);
     long start = System.currentTimeMillis();
-    System.out.println("GEMINI Response: " + geminiChatModel
+    System.out.println("GEMINI Response: " + turn.observe(() -> geminiChatModel
         .call(new Prompt(userMessage))
-        .getResult().getOutput().getText());
+        .getResult().getOutput().getText()));
     System.out.println("Google GenAI Gemini call with Multiple Functions took " + (System.currentTimeMillis() - start) + " ms");
+
+    // the same question again: the tools are answered from the cache
+    Observation cachedTurn = Observation.createNotStarted("gen_ai.function_calling.turn", observationRegistry);
+    start = System.currentTimeMillis();
+    System.out.println("GEMINI Response (cached tools): " + cachedTurn.observe(() -> geminiChatModel
+        .call(new Prompt(userMessage))
+        .getResult().getOutput().getText()));
+    System.out.println("Google GenAI Gemini call with cached Multiple Functions took " + (System.currentTimeMillis() - start) + " ms");
+    System.out.println("Tool cache stats: weather " + weatherTool.stats()
+        + ", division " + divisionTool.stats() + ", sum " + sumTool.stats());
+    System.out.print("Tool metrics:\n" + InstrumentedToolCallback.report(meterRegistry));
   }
 }
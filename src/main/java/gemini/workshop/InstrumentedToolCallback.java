@@ -0,0 +1,167 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+
+/**
+ * ToolCallback decorator recording, for every invocation of the wrapped tool:
+ * a latency timer tagged by tool and outcome (count, percentile histogram, error rate),
+ * the size of the arguments and of the response, and an Observation which nests under the
+ * observation current on the calling thread, e.g. the function calling turn.
+ * Meters go to any Micrometer MeterRegistry (OTLP, Prometheus, ...); observations become
+ * trace spans once a tracing handler such as micrometer-tracing-bridge-otel is registered.
+ */
+public final class InstrumentedToolCallback implements ToolCallback {
+
+  public static final String INVOCATIONS = "gen_ai.tool.invocations";
+  public static final String ARGUMENTS_SIZE = "gen_ai.tool.arguments.size";
+  public static final String RESPONSE_SIZE = "gen_ai.tool.response.size";
+  public static final String OBSERVATION = "gen_ai.tool.call";
+
+  private final ToolCallback delegate;
+  private final String toolName;
+  private final MeterRegistry meterRegistry;
+  private final ObservationRegistry observationRegistry;
+  private final Timer successTimer;
+  private final DistributionSummary argumentsSize;
+  private final DistributionSummary responseSize;
+
+  private InstrumentedToolCallback(ToolCallback delegate, MeterRegistry meterRegistry,
+      ObservationRegistry observationRegistry) {
+    this.delegate = delegate;
+    this.toolName = delegate.getToolDefinition().name();
+    this.meterRegistry = meterRegistry;
+    this.observationRegistry = observationRegistry;
+    this.successTimer = timer("success", "none");
+    this.argumentsSize = DistributionSummary.builder(ARGUMENTS_SIZE)
+        .description("Size of the JSON arguments passed to a tool")
+        .baseUnit("bytes")
+        .tag("tool", toolName)
+        .register(meterRegistry);
+    this.responseSize = DistributionSummary.builder(RESPONSE_SIZE)
+        .description("Size of the response returned by a tool to the model")
+        .baseUnit("bytes")
+        .tag("tool", toolName)
+        .register(meterRegistry);
+  }
+
+  public static InstrumentedToolCallback instrument(ToolCallback delegate, MeterRegistry meterRegistry,
+      ObservationRegistry observationRegistry) {
+    return new InstrumentedToolCallback(delegate, meterRegistry, observationRegistry);
+  }
+
+  // instruments every tool handed to the chat options in one go
+  public static List<ToolCallback> instrumentAll(List<? extends ToolCallback> delegates,
+      MeterRegistry meterRegistry, ObservationRegistry observationRegistry) {
+    return delegates.stream()
+        .<ToolCallback>map(delegate -> instrument(delegate, meterRegistry, observationRegistry))
+        .toList();
+  }
+
+  @Override
+  public ToolDefinition getToolDefinition() {
+    return delegate.getToolDefinition();
+  }
+
+  @Override
+  public ToolMetadata getToolMetadata() {
+    return delegate.getToolMetadata();
+  }
+
+  @Override
+  public String call(String toolInput) {
+    return call(toolInput, null);
+  }
+
+  @Override
+  public String call(String toolInput, ToolContext toolContext) {
+    int inputBytes = utf8Length(toolInput);
+    argumentsSize.record(inputBytes);
+
+    Observation observation = Observation.createNotStarted(OBSERVATION, observationRegistry)
+        .contextualName("execute_tool " + toolName)
+        .lowCardinalityKeyValue("gen_ai.tool.name", toolName)
+        .highCardinalityKeyValue("gen_ai.tool.arguments.size", String.valueOf(inputBytes));
+    long start = System.nanoTime();
+    try {
+      // started, in scope around the call, marked with the error if any, then stopped
+      return observation.observe(() -> {
+        String result = delegate.call(toolInput, toolContext);
+        successTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        int resultBytes = utf8Length(result);
+        responseSize.record(resultBytes);
+        observation.highCardinalityKeyValue("gen_ai.tool.response.size", String.valueOf(resultBytes));
+        return result;
+      });
+    } catch (RuntimeException e) {
+      // error timers are registered lazily, one per exception type actually seen
+      timer("error", e.getClass().getSimpleName()).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      throw e;
+    }
+  }
+
+  // one line per tool: calls, error rate, latency percentiles and payload sizes
+  public static String report(MeterRegistry meterRegistry) {
+    StringBuilder report = new StringBuilder();
+    for (DistributionSummary arguments : meterRegistry.find(ARGUMENTS_SIZE).summaries()) {
+      String tool = arguments.getId().getTag("tool");
+      Timer success = meterRegistry.find(INVOCATIONS).tag("tool", tool).tag("outcome", "success").timer();
+      long errors = meterRegistry.find(INVOCATIONS).tag("tool", tool).tag("outcome", "error").timers().stream()
+          .mapToLong(Timer::count)
+          .sum();
+      long calls = success.count() + errors;
+      // in the order they were published: p50, p95, p99
+      ValueAtPercentile[] percentiles = success.takeSnapshot().percentileValues();
+      DistributionSummary response = meterRegistry.find(RESPONSE_SIZE).tag("tool", tool).summary();
+      report.append(String.format(
+          "%-20s calls=%d errors=%.1f%% p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms args=%.0fB response=%.0fB%n",
+          tool, calls, calls == 0 ? 0.0 : 100.0 * errors / calls,
+          percentiles[0].value(TimeUnit.MILLISECONDS), percentiles[1].value(TimeUnit.MILLISECONDS),
+          percentiles[2].value(TimeUnit.MILLISECONDS), success.max(TimeUnit.MILLISECONDS),
+          arguments.mean(), response == null ? 0.0 : response.mean()));
+    }
+    return report.toString();
+  }
+
+  private Timer timer(String outcome, String error) {
+    return Timer.builder(INVOCATIONS)
+        .description("Latency of tool invocations requested by the model")
+        .tag("tool", toolName)
+        .tag("outcome", outcome)
+        .tag("error", error)
+        .publishPercentileHistogram()
+        // client-side percentiles for console reports, the histogram is what backends aggregate
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(meterRegistry);
+  }
+
+  private static int utf8Length(String text) {
+    return text == null ? 0 : text.getBytes(StandardCharsets.UTF_8).length;
+  }
+}
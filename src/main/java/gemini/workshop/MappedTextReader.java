@@ -0,0 +1,301 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentReader;
+import org.springframework.ai.reader.TextReader;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+
+/**
+ * Reads a text file as a sequence of documents of at most windowChars characters, decoded lazily
+ * while the stream or iterator is consumed, so a multi-GB corpus is processed with a heap of a few
+ * windows. Files are memory-mapped mapBytes at a time and decoded straight from the mapping, other
+ * resources, like a classpath entry inside a jar, are decoded from their input stream.
+ * A window ends at the last paragraph break, line break or whitespace of its second half, the rest
+ * starting the next window. Every document carries the source and charset metadata of TextReader,
+ * plus its window index and the offset of its first character in the decoded text.
+ */
+public final class MappedTextReader implements DocumentReader {
+
+  public static final String WINDOW_INDEX_METADATA = "window_index";
+  public static final String START_OFFSET_METADATA = "start_offset";
+
+  private final Resource resource;
+  private final Charset charset;
+  private final int windowChars;
+  private final long mapBytes;
+  private final Map<String, Object> customMetadata = new HashMap<>();
+
+  private MappedTextReader(Builder builder) {
+    this.resource = builder.resource;
+    this.charset = builder.charset;
+    this.windowChars = builder.windowChars;
+    this.mapBytes = builder.mapBytes;
+    customMetadata.put(TextReader.CHARSET_METADATA, charset.name());
+    customMetadata.put(TextReader.SOURCE_METADATA, resourceIdentifier(resource));
+  }
+
+  public static Builder builder(String resourceUrl) {
+    return new Builder(new DefaultResourceLoader().getResource(resourceUrl));
+  }
+
+  public static Builder builder(Resource resource) {
+    return new Builder(resource);
+  }
+
+  // names the file, charset and window size, so equal strings read the same documents
+  @Override
+  public String toString() {
+    return "MappedTextReader[source=" + customMetadata.get(TextReader.SOURCE_METADATA) + ", charset=" + charset.name()
+        + ", windowChars=" + windowChars + "]";
+  }
+
+  /** Source and charset, the metadata TextReader exposes, shared by all windows. */
+  public Map<String, Object> getCustomMetadata() {
+    return Map.copyOf(customMetadata);
+  }
+
+  /** Reads all windows. Use stream() or iterator() to hold only one window at a time. */
+  @Override
+  public List<Document> get() {
+    try (Stream<Document> windows = stream()) {
+      return windows.toList();
+    }
+  }
+
+  /** The windows of the text in order, decoded as they are consumed. Close the stream to release the file. */
+  public Stream<Document> stream() {
+    WindowIterator windows = new WindowIterator();
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(windows, Spliterator.ORDERED | Spliterator.NONNULL), false)
+        .onClose(windows::close);
+  }
+
+  /** The windows of the text in order; the file is released once the last window has been returned. */
+  public Iterator<Document> iterator() {
+    return new WindowIterator();
+  }
+
+  private final class WindowIterator implements Iterator<Document> {
+    private final CharsetDecoder decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(windowChars);
+    private FileChannel file;
+    private ReadableByteChannel stream;
+    // bytes not decoded yet: the current mapping of the file, or the read buffer of the stream
+    private ByteBuffer bytes;
+    private long mappedStart;
+    private boolean endOfInput;
+    private boolean flushed;
+    private int windowIndex;
+    private long offset;
+    private Document next;
+
+    WindowIterator() {
+      try {
+        if (resource.isFile()) {
+          file = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ);
+          bytes = ByteBuffer.allocate(0);
+        } else {
+          stream = Channels.newChannel(resource.getInputStream());
+          bytes = ByteBuffer.allocate((int) Math.min(mapBytes, 1 << 20)).flip();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot open " + resource, e);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        next = readWindow();
+      }
+      return next != null;
+    }
+
+    @Override
+    public Document next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Document window = next;
+      next = null;
+      return window;
+    }
+
+    private Document readWindow() {
+      try {
+        while (chars.hasRemaining() && !flushed) {
+          if (!bytes.hasRemaining() || (!endOfInput && bytes.remaining() < 4)) {
+            refill();
+          }
+          decoder.decode(bytes, chars, endOfInput);
+          if (endOfInput && !bytes.hasRemaining()) {
+            decoder.flush(chars);
+            flushed = true;
+          }
+        }
+      } catch (IOException e) {
+        close();
+        throw new UncheckedIOException("Cannot read " + resource, e);
+      }
+
+      chars.flip();
+      if (!chars.hasRemaining()) {
+        close();
+        return null;
+      }
+      int length = flushed ? chars.remaining() : cut(chars);
+      String text = chars.subSequence(0, length).toString();
+      chars.position(chars.position() + length);
+      chars.compact();
+
+      Map<String, Object> metadata = new HashMap<>(customMetadata);
+      metadata.put(WINDOW_INDEX_METADATA, windowIndex++);
+      metadata.put(START_OFFSET_METADATA, offset);
+      offset += length;
+      return new Document(text, metadata);
+    }
+
+    // maps the next region of the file, or reads the next block of the stream, keeping undecoded bytes
+    private void refill() throws IOException {
+      if (file != null) {
+        long position = mappedStart + bytes.position();
+        long size = Math.min(mapBytes, file.size() - position);
+        bytes = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+        mappedStart = position;
+        endOfInput = position + size >= file.size();
+      } else {
+        bytes.compact();
+        while (bytes.hasRemaining()) {
+          if (stream.read(bytes) < 0) {
+            endOfInput = true;
+            break;
+          }
+        }
+        bytes.flip();
+      }
+    }
+
+    void close() {
+      try {
+        if (file != null) {
+          file.close();
+        }
+        if (stream != null) {
+          stream.close();
+        }
+      } catch (IOException e) {
+        // read only, nothing is lost
+      }
+    }
+  }
+
+  // same source as TextReader: the file name, else the URI, URL or description of the resource
+  private static String resourceIdentifier(Resource resource) {
+    String filename = resource.getFilename();
+    if (filename != null && !filename.isEmpty()) {
+      return filename;
+    }
+    try {
+      return resource.getURI().toString();
+    } catch (IOException e) {
+      try {
+        return resource.getURL().toString();
+      } catch (IOException ex) {
+        return resource.getDescription();
+      }
+    }
+  }
+
+  // length of the window: up to the last paragraph break, line break or whitespace in its second half
+  private static int cut(CharBuffer window) {
+    int length = window.remaining();
+    int half = length / 2;
+    int lineBreak = -1;
+    int space = -1;
+    for (int i = length - 1; i >= half; i--) {
+      char c = window.get(window.position() + i);
+      if (c == '\n') {
+        if (i > 0 && window.get(window.position() + i - 1) == '\n') {
+          return i + 1;
+        }
+        if (lineBreak < 0) {
+          lineBreak = i + 1;
+        }
+      } else if (space < 0 && Character.isWhitespace(c)) {
+        space = i + 1;
+      }
+    }
+    return lineBreak > 0 ? lineBreak : space > 0 ? space : length;
+  }
+
+  public static final class Builder {
+    private final Resource resource;
+    private Charset charset = StandardCharsets.UTF_8;
+    private int windowChars = 1 << 20;
+    private long mapBytes = 64L << 20;
+
+    private Builder(Resource resource) {
+      this.resource = resource;
+    }
+
+    public Builder charset(Charset charset) {
+      this.charset = charset;
+      return this;
+    }
+
+    // characters per document, the heap held by the reader is a couple of windows
+    public Builder windowChars(int windowChars) {
+      this.windowChars = Math.max(1_024, windowChars);
+      return this;
+    }
+
+    // bytes of the file mapped at a time, outside the heap
+    public Builder mapBytes(long mapBytes) {
+      this.mapBytes = Math.max(1 << 16, mapBytes);
+      return this;
+    }
+
+    public MappedTextReader build() {
+      return new MappedTextReader(this);
+    }
+  }
+}
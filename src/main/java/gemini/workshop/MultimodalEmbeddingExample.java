@@ -17,50 +17,78 @@ package gemini.workshop;
 
 import com.google.genai.Client;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.google.genai.GoogleGenAiEmbeddingConnectionDetails;
+import org.springframework.ai.google.genai.text.GoogleGenAiTextEmbeddingModel;
+import org.springframework.ai.google.genai.text.GoogleGenAiTextEmbeddingOptions;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.SimpleVectorStore;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.core.io.ClassPathResource;
 
 public class MultimodalEmbeddingExample {
   public static void main(String[] args) throws IOException {
 
     boolean useVertexAi = Boolean.parseBoolean(System.getenv("USE_VERTEX_AI"));
     Client client;
+    GoogleGenAiEmbeddingConnectionDetails connectionDetails;
     if (useVertexAi) {
       client = Client.builder()
           .project(System.getenv("GOOGLE_CLOUD_PROJECT"))
           .location(System.getenv("GOOGLE_CLOUD_LOCATION"))
           .vertexAI(true)
           .build();
+      connectionDetails = GoogleGenAiEmbeddingConnectionDetails.builder()
+          .projectId(System.getenv("GOOGLE_CLOUD_PROJECT"))
+          .location(System.getenv("GOOGLE_CLOUD_LOCATION"))
+          .build();
     } else {
       client = Client.builder()
           .apiKey(System.getenv("GOOGLE_API_KEY"))
           .build();
+      connectionDetails = GoogleGenAiEmbeddingConnectionDetails.builder()
+          .apiKey(System.getenv("GOOGLE_API_KEY"))
+          .build();
     }
 
-    System.out.println("Multimodal embedding using com.google.genai.Client is not yet supported in the current SDK version.");
-    /*
-    // default multimodal embedding model multimodalembedding@001
-    String model = "multimodalembedding";
+    // Default embedding model: text-embedding-004
+    var embeddingModel = new GoogleGenAiTextEmbeddingModel(connectionDetails,
+        GoogleGenAiTextEmbeddingOptions.builder()
+            .model("text-embedding-004")
+            .build());
 
-    byte[] imageBytes = new ClassPathResource("/Coffee.png").getContentAsByteArray();
-    byte[] videoBytes = new ClassPathResource("/Birds.mp4").getContentAsByteArray();
-
-    Content content = Content.builder()
-        .parts(Arrays.asList(
-            Part.builder().text("Explain what you see in this image and this video").build(),
-            Part.fromBytes(imageBytes, "image/png"),
-            Part.fromBytes(videoBytes, "video/mp4")
-        ))
+    // the SDK embeds text only: images and video segments are captioned by Gemini, then embedded
+    // with the texts; captions and vectors are cached by media digest, a second run sends no media
+    MultimodalEmbeddingPipeline pipeline = MultimodalEmbeddingPipeline.builder(client, embeddingModel)
+        .model(System.getenv("GEMINI_MODEL"))
+        // Birds.mp4 lasts 1.5 seconds, sampled in segments of 1 second
+        .segmentDuration(Duration.ofSeconds(1))
+        .framesPerSecond(1.0)
         .build();
 
-    // call the embedding model
     long start = System.currentTimeMillis();
-    // embedContent only supports String or List<String> in current SDK version
-    EmbedContentResponse embeddingResponse = client.models.embedContent(model, content, null);
-    
-    if (embeddingResponse.embedding() != null) {
-        System.out.println("Embedding response: " + embeddingResponse.embedding().values());
+    List<Document> documents = pipeline.embed(
+        List.of(new ClassPathResource("/Coffee.png"), new ClassPathResource("/Birds.mp4")),
+        List.of(new Document("Mowgli was raised by wolves in the Seeonee hills."),
+            new Document("A barista pours steamed milk into an espresso.")));
+    for (Document document : documents)
+      System.out.printf("Embedded %s %s: %s%n",
+          document.getMetadata().get(MultimodalEmbeddingPipeline.MODALITY_METADATA),
+          document.getMetadata().getOrDefault("source", ""),
+          document.getText());
+    System.out.println("Multimodal embedding took " + (System.currentTimeMillis() - start) + " ms, " + pipeline.stats());
+
+    // images, video segments and texts in the same vector store, the vectors computed above being reused
+    VectorStore vectorStore = SimpleVectorStore.builder(pipeline.embeddingModel()).build();
+    vectorStore.add(documents);
+
+    for (String query : List.of("a cup of coffee", "birds in flight", "a boy raised by wolves")) {
+      Document best = vectorStore.similaritySearch(SearchRequest.builder().query(query).topK(1).build()).getFirst();
+      System.out.printf("Query '%s' found %s %s%n", query,
+          best.getMetadata().get(MultimodalEmbeddingPipeline.MODALITY_METADATA),
+          best.getMetadata().getOrDefault(MultimodalEmbeddingPipeline.START_SECONDS_METADATA, best.getText()));
     }
-    System.out.println(
-        "Google GenAI call took " + (System.currentTimeMillis() - start) + " ms");
-    */
   }
 }
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.genai.Client;
+import com.google.genai.types.Blob;
+import com.google.genai.types.Content;
+import com.google.genai.types.FileData;
+import com.google.genai.types.FileState;
+import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.Part;
+import com.google.genai.types.Schema;
+import com.google.genai.types.Type;
+import com.google.genai.types.UploadFileConfig;
+import com.google.genai.types.VideoMetadata;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.google.genai.text.GoogleGenAiTextEmbeddingModel;
+import org.springframework.core.io.Resource;
+
+/**
+ * Embeds images, videos and texts into one vector space, so a single VectorStore answers text queries
+ * with passages, pictures and moments of videos alike. The SDK embeds text only: every image, and every
+ * segment of segmentDuration of a video, is captioned by Gemini, and the captions are embedded with the
+ * texts, in concurrent batches. Video segments are cut with VideoMetadata offsets and sampled at
+ * framesPerSecond. With the Gemini API a video is uploaded once through the Files API and referenced by
+ * every segment. Vertex AI takes no uploads: the video is sent inline once, and every segment is captioned
+ * in that single request. It must then fit in the inline request size limit of Vertex AI, use the Gemini
+ * API for larger videos.
+ *
+ * The captions and vectors of a medium are cached on disk under the SHA-256 of its bytes and of the
+ * settings, captioning and embedding model included, so a medium already seen is neither sent nor
+ * captioned again, whatever its file name.
+ * embeddingModel() serves the computed vectors, give it to the VectorStore to add the documents
+ * without embedding them twice.
+ */
+public final class MultimodalEmbeddingPipeline {
+
+  public static final String MODALITY_METADATA = "modality";
+  public static final String MIME_TYPE_METADATA = "mime_type";
+  public static final String MEDIA_DIGEST_METADATA = "media_digest";
+  public static final String START_SECONDS_METADATA = "start_seconds";
+  public static final String END_SECONDS_METADATA = "end_seconds";
+
+  /** Media read from the cache and captioned, caption calls, embedding requests and bytes uploaded. */
+  public record PipelineStats(long cachedMedia, long captionedMedia, long captionCalls, long embeddingRequests,
+      long uploadedBytes) {}
+
+  // a caption and its vector: a whole image, or the seconds of a video from start to end
+  private record Segment(double start, double end, String caption, float[] embedding) {}
+
+  private record CacheEntry(String digest, String mimeType, List<Segment> segments) {}
+
+  private record Medium(Resource resource, String mimeType, byte[] bytes, String digest) {
+    boolean video() {
+      return mimeType.startsWith("video/");
+    }
+  }
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final int MOOV = 0x6d6f6f76;
+  private static final int MVHD = 0x6d766864;
+
+  private static final String IMAGE_PROMPT = """
+      Describe this image for a search index: the objects, people, actions, setting and any visible text.
+      Answer with a single paragraph of at most 80 words.
+      """;
+  private static final String VIDEO_PROMPT = """
+      Describe this part of the video for a search index: what is shown, what happens and anything said.
+      Answer with a single paragraph of at most 80 words.
+      """;
+  private static final String SEGMENTS_PROMPT = """
+      Describe each of the following parts of the video for a search index: what is shown, what happens
+      and anything said. Answer with a JSON array holding a single paragraph of at most 80 words per part,
+      in the order of the parts.
+      """;
+
+  private final Client client;
+  private final PrecomputedEmbeddingModel embeddingModel;
+  private final String model;
+  private final Duration segmentDuration;
+  private final double framesPerSecond;
+  private final int batchSize;
+  private final int concurrency;
+  private final Path cacheDirectory;
+  private final String settingsKey;
+  private final LongAdder cachedMedia = new LongAdder();
+  private final LongAdder captionedMedia = new LongAdder();
+  private final LongAdder captionCalls = new LongAdder();
+  private final LongAdder embeddingRequests = new LongAdder();
+  private final LongAdder uploadedBytes = new LongAdder();
+
+  private MultimodalEmbeddingPipeline(Builder builder) {
+    this.client = builder.client;
+    this.embeddingModel = PrecomputedEmbeddingModel.over(builder.embeddingModel);
+    this.model = builder.model;
+    this.segmentDuration = builder.segmentDuration;
+    this.framesPerSecond = builder.framesPerSecond;
+    this.batchSize = builder.batchSize;
+    this.concurrency = builder.concurrency;
+    this.cacheDirectory = builder.cacheDirectory;
+    // cached results hold for the same captioning model and sampling, and the same embedding model only
+    this.settingsKey = sha256((model + "\0" + segmentDuration.toMillis() + "\0" + framesPerSecond + "\0"
+        + embeddingSettings(builder.embeddingModel)).getBytes(StandardCharsets.UTF_8)).substring(0, 16);
+  }
+
+  public static Builder builder(Client client, EmbeddingModel embeddingModel) {
+    return new Builder(client, embeddingModel);
+  }
+
+  /** Serves the vectors of the documents returned by embed, and embeds the queries. */
+  public EmbeddingModel embeddingModel() {
+    return embeddingModel;
+  }
+
+  /**
+   * One document per image and per video segment, its text the caption, followed by the texts,
+   * all embedded. The media documents get the same ids on every run.
+   */
+  public List<Document> embed(List<Resource> media, List<Document> texts) {
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    try {
+      List<Medium> toCaption = new ArrayList<>();
+      Map<Medium, CacheEntry> entries = new HashMap<>();
+      List<Medium> all = new ArrayList<>(media.size());
+      for (Resource resource : media) {
+        Medium medium = read(resource);
+        all.add(medium);
+        CacheEntry entry = readCache(medium);
+        if (entry != null) {
+          cachedMedia.increment();
+          entries.put(medium, entry);
+        } else {
+          toCaption.add(medium);
+        }
+      }
+
+      // captions of the new media, then their vectors with those of the texts
+      List<CompletableFuture<List<Segment>>> captions = toCaption.stream()
+          .map(medium -> CompletableFuture.supplyAsync(() -> caption(medium, executor), executor)
+              .thenCompose(Function.identity()))
+          .toList();
+      List<List<Segment>> captioned = captions.stream().map(CompletableFuture::join).toList();
+      List<String> pending = new ArrayList<>();
+      captioned.forEach(segments -> segments.forEach(segment -> pending.add(segment.caption())));
+      texts.forEach(text -> pending.add(text.getText()));
+      List<float[]> vectors = embed(pending, executor);
+
+      int next = 0;
+      for (int i = 0; i < toCaption.size(); i++) {
+        Medium medium = toCaption.get(i);
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : captioned.get(i)) {
+          segments.add(new Segment(segment.start(), segment.end(), segment.caption(), vectors.get(next++)));
+        }
+        CacheEntry entry = new CacheEntry(medium.digest(), medium.mimeType(), segments);
+        writeCache(entry);
+        entries.put(medium, entry);
+        captionedMedia.increment();
+      }
+
+      List<Document> documents = new ArrayList<>();
+      for (Medium medium : all) {
+        for (Segment segment : entries.get(medium).segments()) {
+          Document document = toDocument(medium, segment);
+          embeddingModel.put(document, segment.embedding());
+          documents.add(document);
+        }
+      }
+      for (Document text : texts) {
+        Map<String, Object> metadata = new HashMap<>(text.getMetadata());
+        metadata.put(MODALITY_METADATA, "text");
+        Document document = new Document(text.getId(), text.getText(), metadata);
+        embeddingModel.put(document, vectors.get(next++));
+        documents.add(document);
+      }
+      return documents;
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public PipelineStats stats() {
+    return new PipelineStats(cachedMedia.sum(), captionedMedia.sum(), captionCalls.sum(), embeddingRequests.sum(),
+        uploadedBytes.sum());
+  }
+
+  // one caption per image, one per segment of a video
+  private CompletableFuture<List<Segment>> caption(Medium medium, ExecutorService executor) {
+    if (!medium.video()) {
+      Part image = Part.fromBytes(medium.bytes(), medium.mimeType());
+      return CompletableFuture.completedFuture(List.of(new Segment(0, 0, caption(image, IMAGE_PROMPT), null)));
+    }
+
+    // start and end seconds of every segment, the whole video a single segment when its length is unknown
+    double seconds = mp4Seconds(medium.bytes());
+    double step = segmentDuration.toMillis() / 1000.0;
+    List<double[]> bounds = new ArrayList<>();
+    if (seconds <= 0) {
+      bounds.add(new double[] {0, 0});
+    }
+    for (double start = 0; seconds > 0 && start < seconds; start += step) {
+      bounds.add(new double[] {start, Math.min(start + step, seconds)});
+    }
+
+    if (client.vertexAI()) {
+      // no Files API on Vertex AI: the video goes inline in one request captioning all its segments
+      return CompletableFuture.supplyAsync(() -> captionInline(medium, bounds), executor);
+    }
+
+    // the Gemini API takes the video once, every segment refers to the uploaded file
+    com.google.genai.types.File uploaded = upload(medium);
+    FileData video = FileData.builder().fileUri(uploaded.uri().orElseThrow()).mimeType(medium.mimeType()).build();
+    List<CompletableFuture<Segment>> segments = bounds.stream()
+        .map(segment -> CompletableFuture.supplyAsync(() -> new Segment(segment[0], segment[1],
+            caption(Part.builder().fileData(video).videoMetadata(videoMetadata(segment)).build(), VIDEO_PROMPT), null),
+            executor))
+        .toList();
+    return CompletableFuture.allOf(segments.toArray(CompletableFuture<?>[]::new))
+        .thenApply(done -> segments.stream().map(CompletableFuture::join).toList())
+        .whenComplete((result, error) -> {
+          // the captions are cached, the uploaded video is not needed anymore
+          client.files.delete(uploaded.name().orElseThrow(), null);
+        });
+  }
+
+  // the video sent once, inline, with a caption asked for each segment in the same request
+  private List<Segment> captionInline(Medium medium, List<double[]> bounds) {
+    Part.Builder video = Part.builder()
+        .inlineData(Blob.builder().data(medium.bytes()).mimeType(medium.mimeType()));
+    if (bounds.size() == 1) {
+      double[] segment = bounds.getFirst();
+      return List.of(new Segment(segment[0], segment[1],
+          caption(video.videoMetadata(videoMetadata(segment)).build(), VIDEO_PROMPT), null));
+    }
+
+    StringBuilder prompt = new StringBuilder(SEGMENTS_PROMPT);
+    for (double[] segment : bounds) {
+      prompt.append(String.format(Locale.ROOT, "- from %.1f to %.1f seconds%n", segment[0], segment[1]));
+    }
+    GenerateContentConfig config = GenerateContentConfig.builder()
+        .temperature(0.0f)
+        .responseMimeType("application/json")
+        .responseSchema(Schema.builder()
+            .type(Type.Known.ARRAY)
+            .items(Schema.builder().type(Type.Known.STRING))
+            .minItems((long) bounds.size())
+            .maxItems((long) bounds.size()))
+        .build();
+    String json = generate(video.videoMetadata(VideoMetadata.builder().fps(framesPerSecond).build()).build(),
+        prompt.toString(), config);
+    List<String> captions;
+    try {
+      captions = OBJECT_MAPPER.readValue(json, new TypeReference<List<String>>() {});
+    } catch (IOException e) {
+      throw new IllegalStateException("Unexpected captions for " + medium.resource() + ": " + json, e);
+    }
+    if (captions.size() != bounds.size()) {
+      throw new IllegalStateException("Expected " + bounds.size() + " captions for " + medium.resource()
+          + ", got " + captions.size());
+    }
+    List<Segment> segments = new ArrayList<>(bounds.size());
+    for (int i = 0; i < bounds.size(); i++) {
+      segments.add(new Segment(bounds.get(i)[0], bounds.get(i)[1], captions.get(i).strip(), null));
+    }
+    return segments;
+  }
+
+  // the seconds of the segment, sampled at framesPerSecond; the sampling only for a video of unknown length
+  private VideoMetadata videoMetadata(double[] segment) {
+    VideoMetadata.Builder metadata = VideoMetadata.builder().fps(framesPerSecond);
+    if (segment[1] > 0) {
+      metadata.startOffset(Duration.ofMillis(Math.round(segment[0] * 1000)))
+          .endOffset(Duration.ofMillis(Math.round(segment[1] * 1000)));
+    }
+    return metadata.build();
+  }
+
+  private String caption(Part media, String prompt) {
+    String caption = generate(media, prompt, GenerateContentConfig.builder().temperature(0.0f).build());
+    return caption == null ? "" : caption.strip();
+  }
+
+  private String generate(Part media, String prompt, GenerateContentConfig config) {
+    captionCalls.increment();
+    Content content = Content.builder()
+        .role("user")
+        .parts(List.of(media, Part.fromText(prompt)))
+        .build();
+    return client.models.generateContent(model, content, config).text();
+  }
+
+  // uploads the video and waits until it has been processed
+  private com.google.genai.types.File upload(Medium medium) {
+    com.google.genai.types.File file = client.files.upload(medium.bytes(),
+        UploadFileConfig.builder().mimeType(medium.mimeType()).build());
+    uploadedBytes.add(medium.bytes().length);
+    String name = file.name().orElseThrow();
+    try {
+      while (file.state().map(FileState::knownEnum).orElse(FileState.Known.ACTIVE) == FileState.Known.PROCESSING) {
+        Thread.sleep(1_000);
+        file = client.files.get(name, null);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for " + medium.resource(), e);
+    }
+    if (file.state().map(FileState::knownEnum).orElse(null) == FileState.Known.FAILED) {
+      throw new IllegalStateException("Processing failed for " + medium.resource());
+    }
+    return file;
+  }
+
+  // batches of texts embedded concurrently, the vectors in the order of the texts
+  private List<float[]> embed(List<String> texts, ExecutorService executor) {
+    List<CompletableFuture<List<float[]>>> batches = new ArrayList<>();
+    for (int i = 0; i < texts.size(); i += batchSize) {
+      List<String> batch = texts.subList(i, Math.min(i + batchSize, texts.size()));
+      embeddingRequests.increment();
+      batches.add(CompletableFuture.supplyAsync(() -> embeddingModel.embed(batch), executor));
+    }
+    List<float[]> vectors = new ArrayList<>(texts.size());
+    batches.forEach(batch -> vectors.addAll(batch.join()));
+    return vectors;
+  }
+
+  private Document toDocument(Medium medium, Segment segment) {
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("source", medium.resource().getFilename() != null
+        ? medium.resource().getFilename() : medium.resource().getDescription());
+    metadata.put(MODALITY_METADATA, medium.video() ? "video" : "image");
+    metadata.put(MIME_TYPE_METADATA, medium.mimeType());
+    metadata.put(MEDIA_DIGEST_METADATA, medium.digest());
+    if (medium.video()) {
+      metadata.put(START_SECONDS_METADATA, segment.start());
+      metadata.put(END_SECONDS_METADATA, segment.end());
+    }
+    String id = UUID.nameUUIDFromBytes((medium.digest() + "@" + segment.start()).getBytes(StandardCharsets.UTF_8))
+        .toString();
+    return new Document(id, segment.caption(), metadata);
+  }
+
+  // the vectors depend on the embedding model and its output dimensionality, which dimensions() does
+  // not report for GoogleGenAiTextEmbeddingModel: it returns the full size of the model
+  private static String embeddingSettings(EmbeddingModel embeddingModel) {
+    if (embeddingModel instanceof GoogleGenAiTextEmbeddingModel genAiEmbeddingModel) {
+      return genAiEmbeddingModel.defaultOptions.getModel() + "/" + genAiEmbeddingModel.defaultOptions.getDimensions();
+    }
+    return embeddingModel.getClass().getName() + "/" + embeddingModel.dimensions();
+  }
+
+  private static Medium read(Resource resource) {
+    try {
+      byte[] bytes = resource.getContentAsByteArray();
+      return new Medium(resource, mimeType(resource.getFilename()), bytes, sha256(bytes));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read " + resource, e);
+    }
+  }
+
+  private CacheEntry readCache(Medium medium) {
+    Path file = cacheFile(medium.digest());
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try {
+      return OBJECT_MAPPER.readValue(file.toFile(), CacheEntry.class);
+    } catch (IOException e) {
+      // cut short or from another version: captioned again
+      return null;
+    }
+  }
+
+  private void writeCache(CacheEntry entry) {
+    Path file = cacheFile(entry.digest());
+    try {
+      Files.createDirectories(cacheDirectory);
+      Path temporary = Files.createTempFile(cacheDirectory, entry.digest(), ".tmp");
+      OBJECT_MAPPER.writeValue(temporary.toFile(), entry);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot write the media embedding cache " + file, e);
+    }
+  }
+
+  private Path cacheFile(String digest) {
+    return cacheDirectory.resolve(digest + "-" + settingsKey + ".json");
+  }
+
+  private static String mimeType(String filename) {
+    String extension = filename == null ? "" : filename.substring(filename.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    return switch (extension) {
+      case "png" -> "image/png";
+      case "jpg", "jpeg" -> "image/jpeg";
+      case "webp" -> "image/webp";
+      case "gif" -> "image/gif";
+      case "mp4" -> "video/mp4";
+      case "mov" -> "video/quicktime";
+      case "webm" -> "video/webm";
+      case "mpeg", "mpg" -> "video/mpeg";
+      default -> throw new IllegalArgumentException("Unsupported media type: " + filename);
+    };
+  }
+
+  // duration of an MP4 or QuickTime video from its movie header, -1 when not found
+  static double mp4Seconds(byte[] bytes) {
+    return movieHeaderSeconds(ByteBuffer.wrap(bytes), 0, bytes.length);
+  }
+
+  private static double movieHeaderSeconds(ByteBuffer buffer, int start, int end) {
+    int position = start;
+    while (position + 8 <= end) {
+      long size = buffer.getInt(position) & 0xffffffffL;
+      int type = buffer.getInt(position + 4);
+      int header = 8;
+      if (size == 1 && position + 16 <= end) {
+        size = buffer.getLong(position + 8);
+        header = 16;
+      } else if (size == 0) {
+        size = end - position;
+      }
+      if (size < header || position + size > end) {
+        return -1;
+      }
+      if (type == MOOV) {
+        return movieHeaderSeconds(buffer, position + header, (int) (position + size));
+      }
+      if (type == MVHD) {
+        int version = buffer.get(position + header);
+        // version and flags, then 32 or 64-bit creation and modification times
+        int timescaleAt = position + header + (version == 1 ? 20 : 12);
+        long timescale = buffer.getInt(timescaleAt) & 0xffffffffL;
+        long duration = version == 1 ? buffer.getLong(timescaleAt + 4) : buffer.getInt(timescaleAt + 4) & 0xffffffffL;
+        return timescale == 0 ? -1 : (double) duration / timescale;
+      }
+      position += (int) size;
+    }
+    return -1;
+  }
+
+  private static String sha256(byte[] bytes) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static final class Builder {
+    private final Client client;
+    private final EmbeddingModel embeddingModel;
+    private String model = System.getenv("GEMINI_MODEL");
+    private Duration segmentDuration = Duration.ofSeconds(10);
+    private double framesPerSecond = 1.0;
+    private int batchSize = 50;
+    private int concurrency = 4;
+    private Path cacheDirectory = Path.of(System.getProperty("java.io.tmpdir"), "spring-ai-workshop", "media-embeddings");
+
+    private Builder(Client client, EmbeddingModel embeddingModel) {
+      this.client = client;
+      this.embeddingModel = embeddingModel;
+    }
+
+    // Gemini model writing the captions
+    public Builder model(String model) {
+      this.model = model;
+      return this;
+    }
+
+    // length of the video segments, each one captioned and retrieved on its own
+    public Builder segmentDuration(Duration segmentDuration) {
+      this.segmentDuration = segmentDuration.compareTo(Duration.ofSeconds(1)) < 0 ? Duration.ofSeconds(1) : segmentDuration;
+      return this;
+    }
+
+    // frames sampled per second of video, fewer frames cost fewer tokens
+    public Builder framesPerSecond(double framesPerSecond) {
+      this.framesPerSecond = Math.max(0.01, framesPerSecond);
+      return this;
+    }
+
+    // texts per embedding request
+    public Builder batchSize(int batchSize) {
+      this.batchSize = Math.max(1, batchSize);
+      return this;
+    }
+
+    // caption and embedding requests in flight at once
+    public Builder concurrency(int concurrency) {
+      this.concurrency = Math.max(1, concurrency);
+      return this;
+    }
+
+    public Builder cacheDirectory(Path cacheDirectory) {
+      this.cacheDirectory = cacheDirectory;
+      return this;
+    }
+
+    public MultimodalEmbeddingPipeline build() {
+      return new MultimodalEmbeddingPipeline(this);
+    }
+  }
+}
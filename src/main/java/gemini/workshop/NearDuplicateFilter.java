@@ -0,0 +1,296 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentTransformer;
+
+/**
+ * Drops the chunks whose text is a near duplicate of a chunk already seen, between splitting and
+ * VectorStore.add, so boilerplate, repeated headers and overlapping chunks are neither embedded nor stored.
+ *
+ * Two texts are near duplicates when the Jaccard similarity of their word shingles reaches the threshold.
+ * Every text gets a MinHash signature; locality-sensitive hashing over bands of the signature finds the
+ * candidates among the chunks kept so far, and the similarity estimated from the whole signatures decides.
+ * The bands are sized so a pair at the threshold is a candidate with a probability of 95% or more.
+ * The chunks seen are remembered across calls, a chunk is compared with those of the previous batches too.
+ */
+public final class NearDuplicateFilter implements DocumentTransformer {
+
+  /** A dropped chunk, with the kept chunk it duplicates and their estimated similarity. */
+  public record Duplicate(String documentId, String keptDocumentId, double similarity, int textBytes) {}
+
+  private static final double MIN_CANDIDATE_PROBABILITY = 0.95;
+
+  private final double threshold;
+  private final int shingleWords;
+  private final int embeddingDimensions;
+  private final long seed;
+  // h(x) = multipliers[i] * x + increments[i], its high 32 bits being the i-th hash of a shingle
+  private final long[] multipliers;
+  private final long[] increments;
+  private final int rows;
+  private final int bands;
+
+  // signatures of the kept chunks, and for every band the kept chunks per band hash
+  private final List<int[]> signatures = new ArrayList<>();
+  private final List<String> keptIds = new ArrayList<>();
+  private final List<Map<Long, List<Integer>>> buckets = new ArrayList<>();
+  private final List<Duplicate> duplicates = new ArrayList<>();
+  private long documentsSeen;
+
+  private NearDuplicateFilter(Builder builder) {
+    this.threshold = builder.threshold;
+    this.shingleWords = builder.shingleWords;
+    this.embeddingDimensions = builder.embeddingDimensions;
+    this.seed = builder.seed;
+    SplittableRandom random = new SplittableRandom(seed);
+    this.multipliers = new long[builder.numHashes];
+    this.increments = new long[builder.numHashes];
+    for (int i = 0; i < builder.numHashes; i++) {
+      multipliers[i] = random.nextLong() | 1;
+      increments[i] = random.nextLong();
+    }
+    this.rows = rowsPerBand(threshold, builder.numHashes);
+    this.bands = builder.numHashes / rows;
+    for (int band = 0; band < bands; band++) {
+      buckets.add(new HashMap<>());
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  // the threshold and the hash family, the inputs of which chunks are kept
+  @Override
+  public String toString() {
+    return "NearDuplicateFilter[threshold=" + threshold + ", shingleWords=" + shingleWords
+        + ", numHashes=" + multipliers.length + ", seed=" + seed + "]";
+  }
+
+  /** The documents that are not near duplicates of a document seen before, in their order. */
+  @Override
+  public synchronized List<Document> apply(List<Document> documents) {
+    List<Document> kept = new ArrayList<>(documents.size());
+    for (Document document : documents) {
+      documentsSeen++;
+      String text = document.getText();
+      long[] shingles = text == null ? new long[0] : shingles(text);
+      if (shingles.length == 0) {
+        // nothing to compare, media or blank text
+        kept.add(document);
+        continue;
+      }
+      int[] signature = signature(shingles);
+      int match = -1;
+      double similarity = 0;
+      for (int candidate : candidates(signature)) {
+        double estimate = similarity(signature, signatures.get(candidate));
+        if (estimate >= threshold && estimate > similarity) {
+          match = candidate;
+          similarity = estimate;
+        }
+      }
+      if (match >= 0) {
+        duplicates.add(new Duplicate(document.getId(), keptIds.get(match), similarity,
+            text.getBytes(StandardCharsets.UTF_8).length));
+      } else {
+        index(document.getId(), signature);
+        kept.add(document);
+      }
+    }
+    return kept;
+  }
+
+  /** The chunks dropped so far. */
+  public synchronized List<Duplicate> duplicates() {
+    return List.copyOf(duplicates);
+  }
+
+  /** Embeddings not computed nor stored, one per dropped chunk. */
+  public synchronized long embeddingsSaved() {
+    return duplicates.size();
+  }
+
+  /** Bytes not sent to the embedding model nor stored: the UTF-8 text and the float vector of every dropped chunk. */
+  public synchronized long bytesSaved() {
+    return duplicates.stream().mapToLong(Duplicate::textBytes).sum()
+        + (long) duplicates.size() * embeddingDimensions * Float.BYTES;
+  }
+
+  public synchronized String report() {
+    long textBytes = duplicates.stream().mapToLong(Duplicate::textBytes).sum();
+    return String.format("%d of %d chunks dropped as near duplicates (similarity >= %.2f): "
+            + "%d embeddings and %d bytes saved (%d text bytes, %d vector bytes)",
+        duplicates.size(), documentsSeen, threshold, embeddingsSaved(), bytesSaved(),
+        textBytes, bytesSaved() - textBytes);
+  }
+
+  // hashes of the runs of shingleWords words of the lower-cased letters and digits, one for shorter texts
+  private long[] shingles(String text) {
+    List<String> words = new ArrayList<>();
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i < text.length(); ) {
+      int c = text.codePointAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        word.appendCodePoint(Character.toLowerCase(c));
+      } else if (!word.isEmpty()) {
+        words.add(word.toString());
+        word.setLength(0);
+      }
+      i += Character.charCount(c);
+    }
+    if (!word.isEmpty()) {
+      words.add(word.toString());
+    }
+    if (words.isEmpty()) {
+      return new long[0];
+    }
+
+    int count = Math.max(1, words.size() - shingleWords + 1);
+    long[] shingles = new long[count];
+    for (int start = 0; start < count; start++) {
+      long hash = 0xcbf29ce484222325L;
+      for (int w = start; w < Math.min(start + shingleWords, words.size()); w++) {
+        String shingleWord = words.get(w);
+        for (int i = 0; i < shingleWord.length(); i++) {
+          hash = (hash ^ shingleWord.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ ' ') * 0x100000001b3L;
+      }
+      shingles[start] = hash;
+    }
+    return shingles;
+  }
+
+  private int[] signature(long[] shingles) {
+    int[] signature = new int[multipliers.length];
+    for (int i = 0; i < multipliers.length; i++) {
+      long min = Long.MAX_VALUE;
+      for (long shingle : shingles) {
+        // unsigned order of the high 32 bits
+        long hash = (multipliers[i] * shingle + increments[i]) >>> 32;
+        if (hash < min) {
+          min = hash;
+        }
+      }
+      signature[i] = (int) min;
+    }
+    return signature;
+  }
+
+  private List<Integer> candidates(int[] signature) {
+    List<Integer> candidates = new ArrayList<>();
+    for (int band = 0; band < bands; band++) {
+      List<Integer> bucket = buckets.get(band).get(bandHash(signature, band));
+      if (bucket != null) {
+        candidates.addAll(bucket);
+      }
+    }
+    return candidates;
+  }
+
+  private void index(String documentId, int[] signature) {
+    int index = signatures.size();
+    signatures.add(signature);
+    keptIds.add(documentId);
+    for (int band = 0; band < bands; band++) {
+      buckets.get(band).computeIfAbsent(bandHash(signature, band), hash -> new ArrayList<>(1)).add(index);
+    }
+  }
+
+  private long bandHash(int[] signature, int band) {
+    long hash = band;
+    for (int i = band * rows; i < (band + 1) * rows; i++) {
+      hash = hash * 0x9e3779b97f4a7c15L + signature[i];
+    }
+    return hash;
+  }
+
+  // the share of equal minimums estimates the Jaccard similarity of the shingle sets
+  private static double similarity(int[] a, int[] b) {
+    int equal = 0;
+    for (int i = 0; i < a.length; i++) {
+      if (a[i] == b[i]) {
+        equal++;
+      }
+    }
+    return (double) equal / a.length;
+  }
+
+  // the longest bands, fewest candidates, with which a pair at the threshold still meets in one band:
+  // a pair of similarity s is a candidate with probability 1 - (1 - s^rows)^bands
+  private static int rowsPerBand(double threshold, int numHashes) {
+    for (int rows = numHashes; rows > 1; rows--) {
+      int bands = numHashes / rows;
+      if (1 - Math.pow(1 - Math.pow(threshold, rows), bands) >= MIN_CANDIDATE_PROBABILITY) {
+        return rows;
+      }
+    }
+    return 1;
+  }
+
+  public static final class Builder {
+    private double threshold = 0.9;
+    private int shingleWords = 5;
+    private int numHashes = 128;
+    private int embeddingDimensions = 768;
+    private long seed = 42;
+
+    private Builder() {
+    }
+
+    // estimated Jaccard similarity of the word shingles from which a chunk is dropped
+    public Builder threshold(double threshold) {
+      this.threshold = Math.min(1.0, Math.max(0.05, threshold));
+      return this;
+    }
+
+    // words per shingle: fewer words also match reworded passages
+    public Builder shingleWords(int shingleWords) {
+      this.shingleWords = Math.max(1, shingleWords);
+      return this;
+    }
+
+    // MinHash signature length, the error of the similarity estimate is about 1 / sqrt(numHashes)
+    public Builder numHashes(int numHashes) {
+      this.numHashes = Math.max(16, numHashes);
+      return this;
+    }
+
+    // dimensions of the embeddings, for the bytes saved; 768 for text-embedding-004
+    public Builder embeddingDimensions(int embeddingDimensions) {
+      this.embeddingDimensions = Math.max(0, embeddingDimensions);
+      return this;
+    }
+
+    public Builder seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public NearDuplicateFilter build() {
+      return new NearDuplicateFilter(this);
+    }
+  }
+}
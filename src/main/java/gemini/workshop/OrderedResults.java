@@ -0,0 +1,154 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Lock-free, ordered collector for the results of a parallel fan-out: one slot per input index,
+ * written once by the task of that index, and a countdown of the slots still empty.
+ * Completing the last slot completes the collector, which publishes every slot written before it,
+ * so all results are visible to whoever waited on it. Failed tasks fill their slot with the error,
+ * letting callers carry on with the partial results and report the failed chunks.
+ */
+public final class OrderedResults<T> {
+
+  /** A failed task: the index of its input and the error it ended with. */
+  public record ChunkError(int index, Throwable error) {}
+
+  private record Failure(Throwable error) {}
+
+  private final AtomicReferenceArray<Object> slots;
+  private final AtomicInteger remaining;
+  private final CompletableFuture<OrderedResults<T>> done = new CompletableFuture<>();
+
+  public OrderedResults(int size) {
+    this.slots = new AtomicReferenceArray<>(size);
+    this.remaining = new AtomicInteger(size);
+    if (size == 0) {
+      done.complete(this);
+    }
+  }
+
+  /** Runs the task of every input on the executor, each result landing in the slot of its input. */
+  public static <I, T> OrderedResults<T> fanOut(List<I> inputs, Function<? super I, ? extends T> task,
+      Executor executor) {
+    OrderedResults<T> results = new OrderedResults<>(inputs.size());
+    for (int i = 0; i < inputs.size(); i++) {
+      int index = i;
+      I input = inputs.get(i);
+      executor.execute(() -> {
+        try {
+          results.complete(index, task.apply(input));
+        } catch (Throwable e) {
+          results.fail(index, e);
+        }
+      });
+    }
+    return results;
+  }
+
+  public int size() {
+    return slots.length();
+  }
+
+  public void complete(int index, T value) {
+    fill(index, value);
+  }
+
+  public void fail(int index, Throwable error) {
+    fill(index, new Failure(error instanceof CompletionException && error.getCause() != null
+        ? error.getCause() : error));
+  }
+
+  // first write wins, later writes to the same slot are ignored
+  private void fill(int index, Object value) {
+    if (slots.compareAndSet(index, null, value) && remaining.decrementAndGet() == 0) {
+      done.complete(this);
+    }
+  }
+
+  public boolean isComplete() {
+    return done.isDone();
+  }
+
+  // completes once every slot holds a result or an error
+  public CompletableFuture<OrderedResults<T>> whenComplete() {
+    return done;
+  }
+
+  public OrderedResults<T> await() {
+    return done.join();
+  }
+
+  /** Waits at most the timeout; on expiry the collector is returned with whatever slots were filled. */
+  public OrderedResults<T> await(Duration timeout) {
+    try {
+      done.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      // partial results
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+    return this;
+  }
+
+  /** Successful results in input order, skipping failed and pending slots. */
+  @SuppressWarnings("unchecked")
+  public List<T> values() {
+    List<T> values = new ArrayList<>(slots.length());
+    for (int i = 0; i < slots.length(); i++) {
+      Object slot = slots.get(i);
+      if (slot != null && !(slot instanceof Failure)) {
+        values.add((T) slot);
+      }
+    }
+    return values;
+  }
+
+  public List<ChunkError> errors() {
+    List<ChunkError> errors = new ArrayList<>();
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.get(i) instanceof Failure failure) {
+        errors.add(new ChunkError(i, failure.error()));
+      }
+    }
+    return errors;
+  }
+
+  // indexes of the slots still waiting for their task
+  public List<Integer> pending() {
+    List<Integer> pending = new ArrayList<>();
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.get(i) == null) {
+        pending.add(i);
+      }
+    }
+    return pending;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Compares collecting the results of thousands of parallel chunk tasks into a TreeMap of per-chunk
+ * HashMaps after an allOf barrier, as summarizationMapReduce used to, with the index-addressed
+ * OrderedResults slots. Reports wall time and allocation per fan-out, then shows the partial results
+ * and per-chunk errors OrderedResults keeps when some chunks fail.
+ * Runs offline, no model calls: the chunk task stands in for the sub-summary request.
+ */
+public class OrderedResultsBenchmark {
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int MEASURED_ROUNDS = 50;
+
+  public static void main(String[] args) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    for (int chunkCount : new int[] {1_000, 5_000, 20_000}) {
+      List<Integer> chunks = IntStream.range(0, chunkCount).boxed().toList();
+      Function<Integer, String> subSummary = index -> "CONCISE SUB-SUMMARY: chunk " + index;
+
+      System.out.printf("%d chunks%n", chunkCount);
+      measure("allOf + TreeMap of HashMaps", () -> treeMapCollect(chunks, subSummary, executor));
+      measure("OrderedResults slots", () -> OrderedResults.fanOut(chunks, subSummary, executor).await().values());
+    }
+
+    // one chunk in a hundred fails: the barrier loses every result, the slots keep the others
+    List<Integer> chunks = IntStream.range(0, 5_000).boxed().toList();
+    Function<Integer, String> flakySubSummary = index -> {
+      if (index % 100 == 42) {
+        throw new IllegalStateException("quota exceeded");
+      }
+      return "CONCISE SUB-SUMMARY: chunk " + index;
+    };
+    try {
+      treeMapCollect(chunks, flakySubSummary, executor);
+    } catch (Exception e) {
+      System.out.println("allOf + TreeMap with failing chunks: " + e);
+    }
+    OrderedResults<String> results = OrderedResults.fanOut(chunks, flakySubSummary, executor).await();
+    System.out.printf("OrderedResults with failing chunks: %d results, %d errors, first failed chunk %d%n",
+        results.values().size(), results.errors().size(), results.errors().getFirst().index());
+
+    executor.shutdown();
+  }
+
+  // the collection code summarizationMapReduce used before the ordered collector
+  private static List<String> treeMapCollect(List<Integer> chunks, Function<Integer, String> subSummary,
+      ExecutorService executor) throws Exception {
+    List<CompletableFuture<Map<Integer, String>>> futures = new ArrayList<>();
+    Map<Integer, String> resultMap = new TreeMap<>();
+    for (Integer chunk : chunks) {
+      futures.add(CompletableFuture.supplyAsync(() -> {
+        Map<Integer, String> outputWithIndex = new HashMap<>();
+        outputWithIndex.put(chunk, subSummary.apply(chunk));
+        return outputWithIndex;
+      }, executor));
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .thenAccept(v -> futures.forEach(f -> f.thenAccept(resultMap::putAll)))
+        .get();
+    return new ArrayList<>(resultMap.values());
+  }
+
+  private static void measure(String label, Benchmark.Task<Object> round) throws Exception {
+    Benchmark.measure(label, "fan-out", WARMUP_ROUNDS, MEASURED_ROUNDS, round);
+  }
+}
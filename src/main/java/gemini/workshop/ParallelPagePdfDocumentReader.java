@@ -0,0 +1,251 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentReader;
+import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
+import org.springframework.ai.reader.pdf.config.PdfDocumentReaderConfig;
+import org.springframework.ai.reader.pdf.layout.PDFLayoutTextStripperByArea;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StringUtils;
+
+/**
+ * Reads a PDF like PagePdfDocumentReader, producing the same documents with the same metadata,
+ * but extracts the text of the pages on all cores. The pages are split into ranges of pagesPerTask
+ * pages claimed by the workers in turn, every worker reading from its own PDDocument, PDFBox documents
+ * not being thread-safe. A worker reopens its document every pagesPerOpen pages, releasing the pages,
+ * fonts and resources it parsed, so memory per worker stays bounded however long the PDF is.
+ * The page texts are collected in page order and grouped into documents on the calling thread.
+ */
+public final class ParallelPagePdfDocumentReader implements DocumentReader {
+
+  private static final String PDF_PAGE_REGION = "pdfPageRegion";
+
+  private record PageRange(int first, int last) {}
+
+  private final byte[] pdf;
+  private final String resourceFileName;
+  private final PdfDocumentReaderConfig config;
+  private final int parallelism;
+  private final int pagesPerTask;
+  private final int pagesPerOpen;
+
+  private ParallelPagePdfDocumentReader(Builder builder) {
+    try {
+      // the PDF is read once, every worker parses its own document from the shared bytes
+      this.pdf = builder.resource.getContentAsByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read " + builder.resource, e);
+    }
+    this.resourceFileName = builder.resource.getFilename();
+    this.config = builder.config;
+    this.parallelism = builder.parallelism;
+    this.pagesPerTask = builder.pagesPerTask;
+    this.pagesPerOpen = builder.pagesPerOpen;
+  }
+
+  public static Builder builder(String resourceUrl) {
+    return new Builder(new DefaultResourceLoader().getResource(resourceUrl));
+  }
+
+  public static Builder builder(Resource resource) {
+    return new Builder(resource);
+  }
+
+  @Override
+  public List<Document> get() {
+    int totalPages;
+    try (PDDocument document = Loader.loadPDF(pdf)) {
+      totalPages = document.getNumberOfPages();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    List<PageRange> ranges = IntStream.iterate(1, first -> first <= totalPages, first -> first + pagesPerTask)
+        .mapToObj(first -> new PageRange(first, Math.min(first + pagesPerTask - 1, totalPages)))
+        .toList();
+    OrderedResults<List<String>> pageTexts = new OrderedResults<>(ranges.size());
+    AtomicInteger nextRange = new AtomicInteger();
+    int workers = Math.min(parallelism, ranges.size());
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers));
+    try {
+      for (int i = 0; i < workers; i++) {
+        executor.execute(() -> work(ranges, nextRange, pageTexts));
+      }
+      pageTexts.await();
+    } finally {
+      executor.shutdown();
+    }
+    if (!pageTexts.errors().isEmpty()) {
+      OrderedResults.ChunkError error = pageTexts.errors().getFirst();
+      throw new IllegalStateException("Cannot extract PDF pages starting at page "
+          + ranges.get(error.index()).first(), error.error());
+    }
+    return toDocuments(pageTexts.values().stream().flatMap(List::stream).toList(), totalPages);
+  }
+
+  // takes the next range until none is left; the first page lookup resolves the whole page tree,
+  // so a worker keeps its document across ranges and reopens it only to release what it parsed
+  private void work(List<PageRange> ranges, AtomicInteger nextRange, OrderedResults<List<String>> pageTexts) {
+    PDDocument document = null;
+    PDFLayoutTextStripperByArea pdfTextStripper = null;
+    int pagesRead = 0;
+    try {
+      for (int index = nextRange.getAndIncrement(); index < ranges.size(); index = nextRange.getAndIncrement()) {
+        PageRange range = ranges.get(index);
+        try {
+          if (document == null || pagesRead >= pagesPerOpen) {
+            close(document);
+            document = Loader.loadPDF(pdf);
+            pagesRead = 0;
+          }
+          if (pdfTextStripper == null) {
+            pdfTextStripper = new PDFLayoutTextStripperByArea();
+          }
+          pageTexts.complete(index, extract(document, range, pdfTextStripper));
+          pagesRead += range.last() - range.first() + 1;
+        } catch (IOException | RuntimeException e) {
+          pageTexts.fail(index, e);
+        }
+      }
+    } finally {
+      close(document);
+    }
+  }
+
+  // the text of every page of the range, null for the pages without text
+  private List<String> extract(PDDocument document, PageRange range, PDFLayoutTextStripperByArea pdfTextStripper)
+      throws IOException {
+    List<String> texts = new ArrayList<>(range.last() - range.first() + 1);
+    for (int pageNumber = range.first(); pageNumber <= range.last(); pageNumber++) {
+      texts.add(extract(document.getPage(pageNumber - 1), pageNumber, pdfTextStripper));
+    }
+    return texts;
+  }
+
+  private static void close(PDDocument document) {
+    if (document == null) {
+      return;
+    }
+    try {
+      document.close();
+    } catch (IOException e) {
+      // read only, nothing is lost
+    }
+  }
+
+  // same region and formatting as PagePdfDocumentReader
+  private String extract(PDPage page, int pageNumber, PDFLayoutTextStripperByArea pdfTextStripper)
+      throws IOException {
+    int x0 = (int) page.getMediaBox().getLowerLeftX();
+    int xW = (int) page.getMediaBox().getWidth();
+    int y0 = (int) page.getMediaBox().getLowerLeftY() + config.pageTopMargin;
+    int yW = (int) page.getMediaBox().getHeight() - (config.pageTopMargin + config.pageBottomMargin);
+    pdfTextStripper.addRegion(PDF_PAGE_REGION, new Rectangle(x0, y0, xW, yW));
+    pdfTextStripper.extractRegions(page);
+    String pageText = pdfTextStripper.getTextForRegion(PDF_PAGE_REGION);
+    pdfTextStripper.removeRegion(PDF_PAGE_REGION);
+    return StringUtils.hasText(pageText) ? config.pageExtractedTextFormatter.format(pageText, pageNumber) : null;
+  }
+
+  // groups the page texts pagesPerDocument at a time, skipping groups without any text
+  private List<Document> toDocuments(List<String> pageTexts, int totalPages) {
+    int pagesPerDocument = config.pagesPerDocument == 0 ? totalPages : config.pagesPerDocument;
+    List<Document> documents = new ArrayList<>();
+    StringBuilder text = new StringBuilder();
+    boolean hasText = false;
+    int startPageNumber = 1;
+    for (int pageNumber = 1; pageNumber <= totalPages; pageNumber++) {
+      String pageText = pageTexts.get(pageNumber - 1);
+      if (pageText != null) {
+        text.append(pageText);
+        hasText = true;
+      }
+      if (pageNumber % pagesPerDocument == 0 || pageNumber == totalPages) {
+        if (hasText) {
+          documents.add(toDocument(text.toString(), startPageNumber, pageNumber));
+          text.setLength(0);
+          hasText = false;
+        }
+        startPageNumber = pageNumber + 1;
+      }
+    }
+    return documents;
+  }
+
+  private Document toDocument(String docText, int startPageNumber, int endPageNumber) {
+    Document doc = new Document(docText);
+    doc.getMetadata().put(PagePdfDocumentReader.METADATA_START_PAGE_NUMBER, startPageNumber);
+    if (startPageNumber != endPageNumber) {
+      doc.getMetadata().put(PagePdfDocumentReader.METADATA_END_PAGE_NUMBER, endPageNumber);
+    }
+    doc.getMetadata().put(PagePdfDocumentReader.METADATA_FILE_NAME, resourceFileName);
+    return doc;
+  }
+
+  public static final class Builder {
+    private final Resource resource;
+    private PdfDocumentReaderConfig config = PdfDocumentReaderConfig.defaultConfig();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int pagesPerTask = 16;
+    private int pagesPerOpen = 2_000;
+
+    private Builder(Resource resource) {
+      this.resource = resource;
+    }
+
+    public Builder config(PdfDocumentReaderConfig config) {
+      this.config = config;
+      return this;
+    }
+
+    // worker threads, page extraction is CPU bound
+    public Builder parallelism(int parallelism) {
+      this.parallelism = Math.max(1, parallelism);
+      return this;
+    }
+
+    // pages claimed by a worker at a time: small ranges balance the load between the workers
+    public Builder pagesPerTask(int pagesPerTask) {
+      this.pagesPerTask = Math.max(1, pagesPerTask);
+      return this;
+    }
+
+    // pages a worker reads before reopening the PDF, bounding the parsed objects it holds on to
+    public Builder pagesPerOpen(int pagesPerOpen) {
+      this.pagesPerOpen = Math.max(1, pagesPerOpen);
+      return this;
+    }
+
+    public ParallelPagePdfDocumentReader build() {
+      return new ParallelPagePdfDocumentReader(this);
+    }
+  }
+}
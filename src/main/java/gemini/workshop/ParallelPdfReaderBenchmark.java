@@ -0,0 +1,117 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.ExtractedTextFormatter;
+import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
+import org.springframework.ai.reader.pdf.config.PdfDocumentReaderConfig;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+
+/**
+ * Compares PagePdfDocumentReader with ParallelPagePdfDocumentReader on a PDF of 500+ pages, made of
+ * copies of attention-is-all-you-need.pdf, reading one document per page as DocumentProcessingExample does.
+ * Reports pages per second for 1, 2, 4... worker threads up to the number of cores, and checks that
+ * every run returns the same documents as the sequential reader.
+ * Runs offline, no model calls.
+ *
+ * Usage: ParallelPdfReaderBenchmark [pages]
+ */
+public class ParallelPdfReaderBenchmark {
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int MEASURED_ROUNDS = 3;
+
+  public static void main(String[] args) throws Exception {
+    int minPages = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    Path pdf = Files.createTempFile("attention-is-all-you-need-", ".pdf");
+    int pages = repeat(new ClassPathResource("attention-is-all-you-need.pdf").getContentAsByteArray(), minPages, pdf);
+    FileSystemResource resource = new FileSystemResource(pdf);
+
+    PdfDocumentReaderConfig config = PdfDocumentReaderConfig.builder()
+        .withPageTopMargin(0)
+        .withPageExtractedTextFormatter(ExtractedTextFormatter.builder()
+            .withNumberOfTopTextLinesToDelete(0)
+            .build())
+        .withPagesPerDocument(1)
+        .build();
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.printf("%d pages, %d cores%n", pages, cores);
+    List<Document> expected = new PagePdfDocumentReader(resource, config).get();
+    measure("PagePdfDocumentReader", pages, expected, () -> new PagePdfDocumentReader(resource, config).get());
+    for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+      int parallelism = threads;
+      measure("parallel, " + threads + " thread(s)", pages, expected, () -> ParallelPagePdfDocumentReader.builder(resource)
+          .config(config)
+          .parallelism(parallelism)
+          .build()
+          .get());
+      if (threads == cores) {
+        break;
+      }
+    }
+    Files.delete(pdf);
+  }
+
+  // appends copies of the PDF until it has at least minPages pages
+  private static int repeat(byte[] source, int minPages, Path target) throws Exception {
+    try (PDDocument result = new PDDocument()) {
+      List<PDDocument> opened = new ArrayList<>();
+      while (result.getNumberOfPages() < minPages) {
+        // the copies stay open until the result is saved, it shares their page resources
+        PDDocument original = Loader.loadPDF(source);
+        opened.add(original);
+        for (PDPage page : original.getPages()) {
+          result.importPage(page);
+        }
+      }
+      result.save(target.toFile());
+      for (PDDocument original : opened) {
+        original.close();
+      }
+      return result.getNumberOfPages();
+    }
+  }
+
+  private static void measure(String label, int pages, List<Document> expected, Benchmark.Task<List<Document>> read)
+      throws Exception {
+    Benchmark.Measurement<List<Document>> measurement = Benchmark.run(WARMUP_ROUNDS, MEASURED_ROUNDS, read);
+    System.out.printf("  %-28s %8.0f pages/s %14d bytes allocated/read  %d documents, %s%n", label,
+        pages / (measurement.nanosPerRound() / 1e9), measurement.bytesPerRound(), measurement.result().size(),
+        sameDocuments(expected, measurement.result()) ? "same output" : "DIFFERENT OUTPUT");
+  }
+
+  private static boolean sameDocuments(List<Document> expected, List<Document> actual) {
+    if (expected.size() != actual.size()) {
+      return false;
+    }
+    for (int i = 0; i < expected.size(); i++) {
+      if (!expected.get(i).getText().equals(actual.get(i).getText())
+          || !expected.get(i).getMetadata().equals(actual.get(i).getMetadata())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+
+/**
+ * Splits text into the same chunks as TokenTextSplitter with the same settings, faster.
+ *
+ * TokenTextSplitter encodes the whole text on one thread into boxed Integers, then for every chunk
+ * decodes its tokens and encodes the chunk text again to know how many tokens it used.
+ * This splitter relies on a property of the cl100k tokenizer: a line break followed by a printable
+ * ASCII character always ends a pre-tokenizer piece, and pieces are encoded independently.
+ * So the text is cut into blocks at such paragraph boundaries and the blocks are encoded in parallel
+ * into one int array, with the character offset of every token. A chunk starting and ending on whole
+ * characters is then taken from the text instead of being decoded, and re-encoding a chunk only
+ * covers the text before its first and after its last paragraph boundary, the tokens in between being
+ * the ones already known. Anything else, like a chunk starting inside a multi-byte character, falls back
+ * to the decoding and encoding of TokenTextSplitter.
+ */
+public final class ParallelTokenTextSplitter extends TextSplitter {
+
+  private static final Encoding ENCODING = Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+  // UTF-8 length of every token, filled as tokens are met; 0 until then, a token being at least one byte
+  private static final int[] TOKEN_BYTES = new int[1 << 18];
+
+  private final int chunkSize;
+  private final int minChunkSizeChars;
+  private final int minChunkLengthToEmbed;
+  private final int maxNumChunks;
+  private final boolean keepSeparator;
+  private final int blockChars;
+  private final Executor executor;
+
+  /** The tokens of a text, with the index of the character each token starts in. */
+  private record Tokens(int[] ids, int[] charStarts, BitSet wholeChar) {
+    int size() {
+      return ids.length;
+    }
+
+    // the character offset of the token, or -1 when it starts inside a multi-byte character
+    int charStart(int token, int textLength) {
+      if (token == ids.length) {
+        return textLength;
+      }
+      return wholeChar.get(token) ? charStarts[token] : -1;
+    }
+
+    // the token starting exactly at the character offset, or -1
+    int tokenAt(int charOffset) {
+      int index = Arrays.binarySearch(charStarts, charOffset);
+      if (index < 0) {
+        return -1;
+      }
+      // tokens inside one multi-byte character share its offset: take the one starting on it
+      while (index > 0 && charStarts[index - 1] == charOffset) {
+        index--;
+      }
+      return wholeChar.get(index) ? index : -1;
+    }
+  }
+
+  public ParallelTokenTextSplitter() {
+    this(800, 350, 5, 10000, true);
+  }
+
+  public ParallelTokenTextSplitter(int chunkSize, int minChunkSizeChars, int minChunkLengthToEmbed, int maxNumChunks,
+      boolean keepSeparator) {
+    this(chunkSize, minChunkSizeChars, minChunkLengthToEmbed, maxNumChunks, keepSeparator, 16_384,
+        ForkJoinPool.commonPool());
+  }
+
+  private ParallelTokenTextSplitter(int chunkSize, int minChunkSizeChars, int minChunkLengthToEmbed, int maxNumChunks,
+      boolean keepSeparator, int blockChars, Executor executor) {
+    this.chunkSize = chunkSize;
+    this.minChunkSizeChars = minChunkSizeChars;
+    this.minChunkLengthToEmbed = minChunkLengthToEmbed;
+    this.maxNumChunks = maxNumChunks;
+    this.keepSeparator = keepSeparator;
+    this.blockChars = blockChars;
+    this.executor = executor;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  // lists the settings the chunk boundaries depend on
+  @Override
+  public String toString() {
+    return "ParallelTokenTextSplitter[chunkSize=" + chunkSize + ", minChunkSizeChars=" + minChunkSizeChars
+        + ", minChunkLengthToEmbed=" + minChunkLengthToEmbed + ", maxNumChunks=" + maxNumChunks
+        + ", keepSeparator=" + keepSeparator + "]";
+  }
+
+  @Override
+  protected List<String> splitText(String text) {
+    if (text == null || text.trim().isEmpty()) {
+      return new ArrayList<>();
+    }
+    Tokens tokens = encode(text);
+    IntArrayList buffer = new IntArrayList(chunkSize);
+    List<String> chunks = new ArrayList<>();
+    int start = 0;
+    int numChunks = 0;
+    while (start < tokens.size() && numChunks < maxNumChunks) {
+      int end = Math.min(start + chunkSize, tokens.size());
+      String chunkText = text(text, tokens, start, end, buffer);
+      if (chunkText.trim().isEmpty()) {
+        start = end;
+        continue;
+      }
+      if (tokens.size() - start > chunkSize) {
+        int lastPunctuation = Math.max(chunkText.lastIndexOf('.'), Math.max(chunkText.lastIndexOf('?'),
+            Math.max(chunkText.lastIndexOf('!'), chunkText.lastIndexOf('\n'))));
+        if (lastPunctuation != -1 && lastPunctuation > minChunkSizeChars) {
+          chunkText = chunkText.substring(0, lastPunctuation + 1);
+        }
+      }
+      String chunkTextToAppend = keepSeparator
+          ? chunkText.trim() : chunkText.replace(System.lineSeparator(), " ").trim();
+      if (chunkTextToAppend.length() > minChunkLengthToEmbed) {
+        chunks.add(chunkTextToAppend);
+      }
+      start += tokenCount(chunkText, tokens.charStart(start, text.length()), tokens);
+      numChunks++;
+    }
+    if (start < tokens.size()) {
+      String remainingText = text(text, tokens, start, tokens.size(), buffer)
+          .replace(System.lineSeparator(), " ").trim();
+      if (remainingText.length() > minChunkLengthToEmbed) {
+        chunks.add(remainingText);
+      }
+    }
+    return chunks;
+  }
+
+  // the text of the tokens: a substring when they cover whole characters, decoded otherwise
+  private static String text(String text, Tokens tokens, int start, int end, IntArrayList buffer) {
+    int from = tokens.charStart(start, text.length());
+    int to = tokens.charStart(end, text.length());
+    if (from >= 0 && to >= 0) {
+      return text.substring(from, to);
+    }
+    buffer.clear();
+    for (int i = start; i < end; i++) {
+      buffer.add(tokens.ids()[i]);
+    }
+    return ENCODING.decode(buffer);
+  }
+
+  // the number of tokens of the chunk text once encoded on its own, as TokenTextSplitter counts it
+  private static int tokenCount(String chunkText, int chunkStart, Tokens tokens) {
+    if (chunkStart < 0) {
+      return ENCODING.countTokens(chunkText);
+    }
+    int first = -1;
+    int last = -1;
+    for (int i = 1; i < chunkText.length(); i++) {
+      if (isBoundary(chunkText, i)) {
+        if (first < 0) {
+          first = i;
+        }
+        last = i;
+      }
+    }
+    int firstToken = first < 0 ? -1 : tokens.tokenAt(chunkStart + first);
+    int lastToken = last < 0 ? -1 : tokens.tokenAt(chunkStart + last);
+    if (firstToken < 0 || lastToken < 0) {
+      return ENCODING.countTokens(chunkText);
+    }
+    return ENCODING.countTokens(chunkText.substring(0, first)) + (lastToken - firstToken)
+        + ENCODING.countTokens(chunkText.substring(last));
+  }
+
+  // a line break then a printable ASCII character: no cl100k piece spans the two
+  private static boolean isBoundary(CharSequence text, int index) {
+    char c = text.charAt(index);
+    return text.charAt(index - 1) == '\n' && c > ' ' && c < 0x7f;
+  }
+
+  // encodes blocks cut at paragraph boundaries in parallel, then joins their tokens and offsets
+  private Tokens encode(String text) {
+    List<int[]> blocks = new ArrayList<>();
+    int blockStart = 0;
+    while (blockStart < text.length()) {
+      int blockEnd = Math.min(blockStart + blockChars, text.length());
+      while (blockEnd < text.length() && !isBoundary(text, blockEnd)) {
+        blockEnd++;
+      }
+      blocks.add(new int[] {blockStart, blockEnd});
+      blockStart = blockEnd;
+    }
+
+    List<CompletableFuture<Tokens>> encoded = blocks.stream()
+        .map(block -> CompletableFuture.supplyAsync(() -> encodeBlock(text, block[0], block[1]), executor))
+        .toList();
+    int size = 0;
+    for (CompletableFuture<Tokens> block : encoded) {
+      size += block.join().size();
+    }
+    int[] ids = new int[size];
+    int[] charStarts = new int[size];
+    BitSet wholeChar = new BitSet(size);
+    int offset = 0;
+    for (CompletableFuture<Tokens> future : encoded) {
+      Tokens block = future.join();
+      System.arraycopy(block.ids(), 0, ids, offset, block.size());
+      System.arraycopy(block.charStarts(), 0, charStarts, offset, block.size());
+      for (int i = block.wholeChar().nextSetBit(0); i >= 0; i = block.wholeChar().nextSetBit(i + 1)) {
+        wholeChar.set(offset + i);
+      }
+      offset += block.size();
+    }
+    return new Tokens(ids, charStarts, wholeChar);
+  }
+
+  // walks the UTF-8 bytes of the tokens along the characters of the block
+  private static Tokens encodeBlock(String text, int from, int to) {
+    int[] ids = ENCODING.encode(text.substring(from, to)).toArray();
+    int[] charStarts = new int[ids.length];
+    BitSet wholeChar = new BitSet(ids.length);
+    IntArrayList single = new IntArrayList(1);
+    int charIndex = from;
+    long charByte = 0;
+    long tokenByte = 0;
+    boolean loneSurrogate = false;
+    for (int i = 0; i < ids.length; i++) {
+      while (charIndex < to) {
+        int charBytes = utf8Length(text, charIndex);
+        if (charByte + charBytes > tokenByte) {
+          break;
+        }
+        loneSurrogate |= charBytes == 1 && Character.isSurrogate(text.charAt(charIndex));
+        charByte += charBytes;
+        charIndex += Character.isHighSurrogate(text.charAt(charIndex)) && charBytes == 4 ? 2 : 1;
+      }
+      charStarts[i] = charIndex;
+      if (charByte == tokenByte) {
+        wholeChar.set(i);
+      }
+      tokenByte += tokenBytes(ids[i], single);
+    }
+    if (loneSurrogate) {
+      // decoded as '?', the substrings of this block would differ from the decoded tokens
+      wholeChar.clear();
+    }
+    return new Tokens(ids, charStarts, wholeChar);
+  }
+
+  private static int tokenBytes(int token, IntArrayList single) {
+    int bytes = TOKEN_BYTES[token];
+    if (bytes == 0) {
+      single.clear();
+      single.add(token);
+      bytes = ENCODING.decodeBytes(single).length;
+      TOKEN_BYTES[token] = bytes;
+    }
+    return bytes;
+  }
+
+  // bytes of the character as String.getBytes(UTF_8) encodes it, a lone surrogate becoming '?'
+  private static int utf8Length(String text, int index) {
+    char c = text.charAt(index);
+    if (c < 0x80) {
+      return 1;
+    }
+    if (c < 0x800) {
+      return 2;
+    }
+    if (Character.isHighSurrogate(c)) {
+      return index + 1 < text.length() && Character.isLowSurrogate(text.charAt(index + 1)) ? 4 : 1;
+    }
+    return Character.isLowSurrogate(c) ? 1 : 3;
+  }
+
+  public static final class Builder {
+    private int chunkSize = 800;
+    private int minChunkSizeChars = 350;
+    private int minChunkLengthToEmbed = 5;
+    private int maxNumChunks = 10000;
+    private boolean keepSeparator = true;
+    private int blockChars = 16_384;
+    private Executor executor = ForkJoinPool.commonPool();
+
+    private Builder() {
+    }
+
+    public Builder withChunkSize(int chunkSize) {
+      this.chunkSize = chunkSize;
+      return this;
+    }
+
+    public Builder withMinChunkSizeChars(int minChunkSizeChars) {
+      this.minChunkSizeChars = minChunkSizeChars;
+      return this;
+    }
+
+    public Builder withMinChunkLengthToEmbed(int minChunkLengthToEmbed) {
+      this.minChunkLengthToEmbed = minChunkLengthToEmbed;
+      return this;
+    }
+
+    public Builder withMaxNumChunks(int maxNumChunks) {
+      this.maxNumChunks = maxNumChunks;
+      return this;
+    }
+
+    public Builder withKeepSeparator(boolean keepSeparator) {
+      this.keepSeparator = keepSeparator;
+      return this;
+    }
+
+    // characters per block encoded on its own, extended to the next paragraph boundary
+    public Builder withBlockChars(int blockChars) {
+      this.blockChars = Math.max(1, blockChars);
+      return this;
+    }
+
+    public Builder withExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public ParallelTokenTextSplitter build() {
+      return new ParallelTokenTextSplitter(chunkSize, minChunkSizeChars, minChunkLengthToEmbed, maxNumChunks,
+          keepSeparator, blockChars, executor);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import io.micrometer.context.ContextSnapshot;
+import io.micrometer.context.ContextSnapshotFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage.ToolResponse;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.tool.ToolCallingChatOptions;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.model.tool.ToolExecutionResult;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.execution.DefaultToolExecutionExceptionProcessor;
+import org.springframework.ai.tool.execution.ToolExecutionException;
+import org.springframework.ai.tool.execution.ToolExecutionExceptionProcessor;
+import org.springframework.ai.tool.resolution.DelegatingToolCallbackResolver;
+import org.springframework.ai.tool.resolution.ToolCallbackResolver;
+
+/**
+ * ToolCallingManager running all the function calls requested in a single model turn concurrently,
+ * one virtual thread per call, instead of one after another.
+ * A turn costs the slowest tool rather than the sum of all tools; responses are assembled
+ * in the order the model requested them. The caller's observation is propagated to the virtual
+ * threads, so tool spans nest under the turn that requested them.
+ */
+public final class ParallelToolCallingManager implements ToolCallingManager {
+
+  private final ToolCallingManager delegate;
+  private final ToolCallbackResolver toolCallbackResolver;
+  private final ToolExecutionExceptionProcessor exceptionProcessor =
+      DefaultToolExecutionExceptionProcessor.builder().build();
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final ContextSnapshotFactory contextSnapshotFactory = ContextSnapshotFactory.builder().build();
+  private final Duration defaultTimeout;
+  private final Map<String, Duration> toolTimeouts;
+
+  private ParallelToolCallingManager(ToolCallbackResolver toolCallbackResolver, Duration defaultTimeout,
+      Map<String, Duration> toolTimeouts) {
+    this.delegate = ToolCallingManager.builder().toolCallbackResolver(toolCallbackResolver).build();
+    this.toolCallbackResolver = toolCallbackResolver;
+    this.defaultTimeout = defaultTimeout;
+    this.toolTimeouts = Map.copyOf(toolTimeouts);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  @Override
+  public List<ToolDefinition> resolveToolDefinitions(ToolCallingChatOptions chatOptions) {
+    return delegate.resolveToolDefinitions(chatOptions);
+  }
+
+  @Override
+  public ToolExecutionResult executeToolCalls(Prompt prompt, ChatResponse chatResponse) {
+    AssistantMessage assistantMessage = chatResponse.getResults().stream()
+        .map(Generation::getOutput)
+        .filter(AssistantMessage::hasToolCalls)
+        .findFirst()
+        .orElseThrow(() -> new IllegalStateException("No tool call requested by the chat model"));
+
+    List<ToolCallback> toolCallbacks = prompt.getOptions() instanceof ToolCallingChatOptions options
+        ? options.getToolCallbacks() : List.of();
+    ToolContext toolContext = buildToolContext(prompt, assistantMessage);
+
+    // resolve every tool before starting any, so an unknown name fails the turn with nothing left running
+    List<AssistantMessage.ToolCall> toolCalls = assistantMessage.getToolCalls();
+    List<ToolCallback> callbacks = new ArrayList<>(toolCalls.size());
+    for (AssistantMessage.ToolCall toolCall : toolCalls) {
+      callbacks.add(resolve(toolCall.name(), toolCallbacks));
+    }
+
+    // start every call of the turn before waiting on any of them
+    List<Future<String>> futures = new ArrayList<>(toolCalls.size());
+    ContextSnapshot contextSnapshot = contextSnapshotFactory.captureAll();
+    long started = System.nanoTime();
+    for (int i = 0; i < toolCalls.size(); i++) {
+      AssistantMessage.ToolCall toolCall = toolCalls.get(i);
+      ToolCallback toolCallback = callbacks.get(i);
+      String arguments = toolCall.arguments() == null || toolCall.arguments().isBlank() ? "{}" : toolCall.arguments();
+      futures.add(executor.submit(contextSnapshot.wrap(() -> toolCallback.call(arguments, toolContext))));
+    }
+
+    // collect results in request order, each tool bounded by its own timeout measured from the start of the turn
+    List<ToolResponse> toolResponses = new ArrayList<>(toolCalls.size());
+    boolean returnDirect = true;
+    try {
+      for (int i = 0; i < toolCalls.size(); i++) {
+        AssistantMessage.ToolCall toolCall = toolCalls.get(i);
+        Duration timeout = toolTimeouts.getOrDefault(toolCall.name(), defaultTimeout);
+        String result = awaitResult(toolCall.name(), futures.get(i),
+            timeout.toNanos() - (System.nanoTime() - started), timeout);
+        toolResponses.add(new ToolResponse(toolCall.id(), toolCall.name(), result != null ? result : ""));
+        returnDirect &= callbacks.get(i).getToolMetadata().returnDirect();
+      }
+    } catch (RuntimeException e) {
+      // the turn failed, stop the tools still running instead of leaving them on the executor
+      futures.forEach(future -> future.cancel(true));
+      throw e;
+    }
+
+    List<Message> conversationHistory = new ArrayList<>(prompt.getInstructions());
+    conversationHistory.add(assistantMessage);
+    conversationHistory.add(ToolResponseMessage.builder().responses(toolResponses).build());
+    return ToolExecutionResult.builder()
+        .conversationHistory(conversationHistory)
+        .returnDirect(returnDirect)
+        .build();
+  }
+
+  // the request's callbacks first, then the resolver, as DefaultToolCallingManager looks tools up
+  private ToolCallback resolve(String toolName, List<ToolCallback> toolCallbacks) {
+    ToolCallback toolCallback = toolCallbacks.stream()
+        .filter(tool -> tool.getToolDefinition().name().equals(toolName))
+        .findFirst()
+        .orElseGet(() -> toolCallbackResolver.resolve(toolName));
+    if (toolCallback == null) {
+      throw new IllegalStateException("No ToolCallback found for tool name: " + toolName);
+    }
+    return toolCallback;
+  }
+
+  private String awaitResult(String toolName, Future<String> future, long remainingNanos, Duration timeout) {
+    try {
+      return future.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      // let the model know instead of failing the whole turn
+      return "Tool " + toolName + " did not complete within " + timeout.toMillis() + " ms";
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ToolExecutionException toolExecutionException) {
+        return exceptionProcessor.process(toolExecutionException);
+      }
+      throw e.getCause() instanceof RuntimeException runtimeException
+          ? runtimeException : new IllegalStateException("Tool " + toolName + " failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for tool " + toolName, e);
+    }
+  }
+
+  private static ToolContext buildToolContext(Prompt prompt, AssistantMessage assistantMessage) {
+    if (!(prompt.getOptions() instanceof ToolCallingChatOptions options)
+        || options.getToolContext() == null || options.getToolContext().isEmpty()) {
+      return new ToolContext(Map.of());
+    }
+    List<Message> history = new ArrayList<>(prompt.copy().getInstructions());
+    history.add(assistantMessage);
+    Map<String, Object> context = new HashMap<>(options.getToolContext());
+    context.put(ToolContext.TOOL_CALL_HISTORY, history);
+    return new ToolContext(context);
+  }
+
+  public static final class Builder {
+    private ToolCallbackResolver toolCallbackResolver = new DelegatingToolCallbackResolver(List.of());
+    private Duration defaultTimeout = Duration.ofSeconds(30);
+    private final Map<String, Duration> toolTimeouts = new HashMap<>();
+
+    private Builder() {
+    }
+
+    // resolves the tools the request names in its options instead of passing as callbacks
+    public Builder toolCallbackResolver(ToolCallbackResolver toolCallbackResolver) {
+      this.toolCallbackResolver = toolCallbackResolver;
+      return this;
+    }
+
+    public Builder defaultTimeout(Duration defaultTimeout) {
+      this.defaultTimeout = defaultTimeout;
+      return this;
+    }
+
+    public Builder toolTimeout(String toolName, Duration timeout) {
+      this.toolTimeouts.put(toolName, timeout);
+      return this;
+    }
+
+    public ParallelToolCallingManager build() {
+      return new ParallelToolCallingManager(toolCallbackResolver, defaultTimeout, toolTimeouts);
+    }
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+/**
+ * Projects embeddings onto their principal components, learned locally from a sample of vectors,
+ * so 768-dimension vectors are stored and searched with 256 dimensions or fewer. The components are
+ * the top eigenvectors of the sample covariance, found by block power iteration and ordered by
+ * the variance they explain: the first k components of a projection are the best k-dimension one.
+ * Projected vectors are scaled to unit length, for cosine similarity.
+ *
+ * Models trained for truncation, like text-embedding-004 with its output dimensionality option,
+ * already put most of the information in the first dimensions; PCA adapts to the corpus at hand,
+ * which pays off at the lowest dimensions. EmbeddingRecall compares both.
+ */
+public final class PcaProjection {
+
+  private static final int OVERSAMPLING = 10;
+  private static final int POWER_ITERATIONS = 8;
+
+  private final float[] mean;
+  // one row per component, the first explaining the most variance
+  private final float[][] components;
+  private final double explainedVariance;
+
+  private PcaProjection(float[] mean, float[][] components, double explainedVariance) {
+    this.mean = mean;
+    this.components = components;
+    this.explainedVariance = explainedVariance;
+  }
+
+  /** Learns the first components of the sample, a few hundred vectors are enough. */
+  public static PcaProjection fit(List<float[]> sample, int components) {
+    if (sample.size() < 2) {
+      throw new IllegalArgumentException("Expected at least 2 sample vectors, got " + sample.size());
+    }
+    int dimensions = sample.getFirst().length;
+    int k = Math.min(components, Math.min(dimensions, sample.size() - 1));
+
+    double[] mean = new double[dimensions];
+    for (float[] vector : sample) {
+      for (int i = 0; i < dimensions; i++) {
+        mean[i] += vector[i];
+      }
+    }
+    for (int i = 0; i < dimensions; i++) {
+      mean[i] /= sample.size();
+    }
+
+    double[][] covariance = new double[dimensions][dimensions];
+    double[] centered = new double[dimensions];
+    for (float[] vector : sample) {
+      for (int i = 0; i < dimensions; i++) {
+        centered[i] = vector[i] - mean[i];
+      }
+      for (int i = 0; i < dimensions; i++) {
+        double ci = centered[i];
+        double[] row = covariance[i];
+        for (int j = i; j < dimensions; j++) {
+          row[j] += ci * centered[j];
+        }
+      }
+    }
+    double trace = 0;
+    for (int i = 0; i < dimensions; i++) {
+      for (int j = i; j < dimensions; j++) {
+        covariance[i][j] /= sample.size() - 1;
+        covariance[j][i] = covariance[i][j];
+      }
+      trace += covariance[i][i];
+    }
+
+    // an orthonormal basis of the dominant subspace, a few more vectors than needed for faster convergence
+    int p = Math.min(dimensions, k + OVERSAMPLING);
+    SplittableRandom random = new SplittableRandom(42);
+    double[][] basis = new double[p][dimensions];
+    for (double[] vector : basis) {
+      for (int i = 0; i < dimensions; i++) {
+        vector[i] = random.nextGaussian();
+      }
+    }
+    orthonormalize(basis, random);
+    for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+      for (int j = 0; j < p; j++) {
+        basis[j] = multiply(covariance, basis[j]);
+      }
+      orthonormalize(basis, random);
+    }
+
+    // the covariance restricted to the subspace, whose eigenvectors rotate the basis onto the components
+    double[][] restricted = new double[p][p];
+    double[][] projected = new double[p][];
+    for (int j = 0; j < p; j++) {
+      projected[j] = multiply(covariance, basis[j]);
+    }
+    for (int a = 0; a < p; a++) {
+      for (int b = a; b < p; b++) {
+        restricted[a][b] = dot(basis[a], projected[b]);
+        restricted[b][a] = restricted[a][b];
+      }
+    }
+    double[][] eigenvectors = new double[p][p];
+    double[] eigenvalues = eigen(restricted, eigenvectors);
+    Integer[] order = new Integer[p];
+    for (int j = 0; j < p; j++) {
+      order[j] = j;
+    }
+    Arrays.sort(order, (a, b) -> Double.compare(eigenvalues[b], eigenvalues[a]));
+
+    float[][] rows = new float[k][dimensions];
+    double explained = 0;
+    for (int c = 0; c < k; c++) {
+      int column = order[c];
+      for (int j = 0; j < p; j++) {
+        double weight = eigenvectors[j][column];
+        for (int i = 0; i < dimensions; i++) {
+          rows[c][i] += (float) (weight * basis[j][i]);
+        }
+      }
+      explained += Math.max(0, eigenvalues[column]);
+    }
+    float[] floatMean = new float[dimensions];
+    for (int i = 0; i < dimensions; i++) {
+      floatMean[i] = (float) mean[i];
+    }
+    return new PcaProjection(floatMean, rows, trace == 0 ? 0 : explained / trace);
+  }
+
+  /** Dimensions of the projected vectors. */
+  public int dimensions() {
+    return components.length;
+  }
+
+  /** Share of the sample variance kept by all the components. */
+  public double explainedVariance() {
+    return explainedVariance;
+  }
+
+  public float[] project(float[] vector) {
+    return project(vector, components.length);
+  }
+
+  /** Projects onto the first dimensions components, as a unit vector. */
+  public float[] project(float[] vector, int dimensions) {
+    int k = Math.min(dimensions, components.length);
+    float[] projected = new float[k];
+    double norm = 0;
+    for (int c = 0; c < k; c++) {
+      float[] component = components[c];
+      double sum = 0;
+      for (int i = 0; i < component.length; i++) {
+        sum += component[i] * (vector[i] - mean[i]);
+      }
+      projected[c] = (float) sum;
+      norm += sum * sum;
+    }
+    if (norm > 0) {
+      float scale = (float) (1 / Math.sqrt(norm));
+      for (int c = 0; c < k; c++) {
+        projected[c] *= scale;
+      }
+    }
+    return projected;
+  }
+
+  /** The embedding model projecting every vector it returns, to give to a VectorStore. */
+  public EmbeddingModel wrap(EmbeddingModel embeddingModel) {
+    return new EmbeddingModel() {
+      @Override
+      public EmbeddingResponse call(EmbeddingRequest request) {
+        EmbeddingResponse response = embeddingModel.call(request);
+        List<Embedding> projected = new ArrayList<>(response.getResults().size());
+        for (Embedding embedding : response.getResults()) {
+          projected.add(new Embedding(project(embedding.getOutput()), embedding.getIndex(), embedding.getMetadata()));
+        }
+        return new EmbeddingResponse(projected, response.getMetadata());
+      }
+
+      @Override
+      public float[] embed(Document document) {
+        return project(embeddingModel.embed(document));
+      }
+
+      @Override
+      public int dimensions() {
+        return components.length;
+      }
+    };
+  }
+
+  private static double[] multiply(double[][] matrix, double[] vector) {
+    double[] result = new double[matrix.length];
+    for (int i = 0; i < matrix.length; i++) {
+      result[i] = dot(matrix[i], vector);
+    }
+    return result;
+  }
+
+  private static double dot(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  // modified Gram-Schmidt, a vector lost to rounding is replaced with a random one
+  private static void orthonormalize(double[][] vectors, SplittableRandom random) {
+    for (int j = 0; j < vectors.length; j++) {
+      double[] vector = vectors[j];
+      for (int attempt = 0; attempt < 3; attempt++) {
+        for (int previous = 0; previous < j; previous++) {
+          double projection = dot(vectors[previous], vector);
+          for (int i = 0; i < vector.length; i++) {
+            vector[i] -= projection * vectors[previous][i];
+          }
+        }
+        double norm = Math.sqrt(dot(vector, vector));
+        if (norm > 1e-12) {
+          for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+          }
+          break;
+        }
+        for (int i = 0; i < vector.length; i++) {
+          vector[i] = random.nextGaussian();
+        }
+      }
+    }
+  }
+
+  // cyclic Jacobi rotations of a small symmetric matrix: its eigenvalues, the eigenvectors in the columns
+  private static double[] eigen(double[][] matrix, double[][] eigenvectors) {
+    int n = matrix.length;
+    double[][] a = new double[n][];
+    for (int i = 0; i < n; i++) {
+      a[i] = matrix[i].clone();
+      Arrays.fill(eigenvectors[i], 0);
+      eigenvectors[i][i] = 1;
+    }
+    for (int sweep = 0; sweep < 100; sweep++) {
+      double off = 0;
+      double diagonal = 0;
+      for (int p = 0; p < n; p++) {
+        diagonal += a[p][p] * a[p][p];
+        for (int q = p + 1; q < n; q++) {
+          off += a[p][q] * a[p][q];
+        }
+      }
+      if (off <= 1e-24 * diagonal) {
+        break;
+      }
+      for (int p = 0; p < n; p++) {
+        for (int q = p + 1; q < n; q++) {
+          if (a[p][q] == 0) {
+            continue;
+          }
+          double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+          double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+          double c = 1 / Math.sqrt(t * t + 1);
+          double s = t * c;
+          for (int k = 0; k < n; k++) {
+            double akp = a[k][p];
+            double akq = a[k][q];
+            a[k][p] = c * akp - s * akq;
+            a[k][q] = s * akp + c * akq;
+          }
+          for (int k = 0; k < n; k++) {
+            double apk = a[p][k];
+            double aqk = a[q][k];
+            a[p][k] = c * apk - s * aqk;
+            a[q][k] = s * apk + c * aqk;
+          }
+          for (int k = 0; k < n; k++) {
+            double vkp = eigenvectors[k][p];
+            double vkq = eigenvectors[k][q];
+            eigenvectors[k][p] = c * vkp - s * vkq;
+            eigenvectors[k][q] = s * vkp + c * vkq;
+          }
+        }
+      }
+    }
+    double[] eigenvalues = new double[n];
+    for (int i = 0; i < n; i++) {
+      eigenvalues[i] = a[i][i];
+    }
+    return eigenvalues;
+  }
+}
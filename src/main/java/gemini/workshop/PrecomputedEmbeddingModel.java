@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+/**
+ * An EmbeddingModel answering with vectors computed beforehand, so documents embedded in batches,
+ * read from a cache or imported from a file are added to a VectorStore without calling the model again.
+ * Documents are looked up by id, then by text; everything else, like the queries, goes to the delegate.
+ */
+public final class PrecomputedEmbeddingModel implements EmbeddingModel {
+
+  /** Vectors served from the precomputed ones, and vectors asked from the delegate. */
+  public record EmbeddingStats(long precomputed, long computed) {}
+
+  private final EmbeddingModel delegate;
+  private final Map<String, float[]> byId = new ConcurrentHashMap<>();
+  private final Map<String, float[]> byText = new ConcurrentHashMap<>();
+  private final LongAdder precomputed = new LongAdder();
+  private final LongAdder computed = new LongAdder();
+  private volatile int dimensions;
+
+  private PrecomputedEmbeddingModel(EmbeddingModel delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Embeds with the delegate what has not been precomputed. */
+  public static PrecomputedEmbeddingModel over(EmbeddingModel delegate) {
+    return new PrecomputedEmbeddingModel(delegate);
+  }
+
+  /** The vector of the document, served for its id and for its text. */
+  public PrecomputedEmbeddingModel put(Document document, float[] embedding) {
+    byId.put(document.getId(), embedding);
+    if (document.getText() != null) {
+      byText.put(document.getText(), embedding);
+    }
+    dimensions = embedding.length;
+    return this;
+  }
+
+  public PrecomputedEmbeddingModel put(String text, float[] embedding) {
+    byText.put(text, embedding);
+    dimensions = embedding.length;
+    return this;
+  }
+
+  @Override
+  public float[] embed(Document document) {
+    float[] embedding = byId.get(document.getId());
+    if (embedding == null && document.getText() != null) {
+      embedding = byText.get(document.getText());
+    }
+    if (embedding != null) {
+      precomputed.increment();
+      return embedding;
+    }
+    computed.increment();
+    return delegate.embed(document);
+  }
+
+  @Override
+  public EmbeddingResponse call(EmbeddingRequest request) {
+    List<String> texts = request.getInstructions();
+    float[][] embeddings = new float[texts.size()][];
+    List<String> missing = new ArrayList<>();
+    for (int i = 0; i < texts.size(); i++) {
+      embeddings[i] = byText.get(texts.get(i));
+      if (embeddings[i] == null) {
+        missing.add(texts.get(i));
+      }
+    }
+    precomputed.add(texts.size() - missing.size());
+    if (!missing.isEmpty()) {
+      // the missing texts in one request, their vectors filled in the gaps in order
+      computed.add(missing.size());
+      List<Embedding> results = delegate.call(new EmbeddingRequest(missing, request.getOptions())).getResults();
+      for (int i = 0, next = 0; i < embeddings.length; i++) {
+        if (embeddings[i] == null) {
+          embeddings[i] = results.get(next++).getOutput();
+        }
+      }
+    }
+    List<Embedding> results = new ArrayList<>(embeddings.length);
+    for (int i = 0; i < embeddings.length; i++) {
+      results.add(new Embedding(embeddings[i], i));
+    }
+    return new EmbeddingResponse(results);
+  }
+
+  @Override
+  public int dimensions() {
+    return dimensions > 0 ? dimensions : delegate.dimensions();
+  }
+
+  public EmbeddingStats stats() {
+    return new EmbeddingStats(precomputed.sum(), computed.sum());
+  }
+}
@@ -16,17 +16,18 @@
 package gemini.workshop;
 
 import com.google.genai.Client;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import org.springframework.ai.chat.messages.Message;
-import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.ai.chat.prompt.PromptTemplate;
-import org.springframework.ai.chat.prompt.SystemPromptTemplate;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.TokenCountBatchingStrategy;
 import org.springframework.ai.reader.TextReader;
-import org.springframework.ai.transformer.splitter.TokenTextSplitter;
 import org.springframework.ai.vectorstore.SearchRequest;
 import org.springframework.ai.vectorstore.SimpleVectorStore;
 import org.springframework.ai.vectorstore.VectorStore;
@@ -37,7 +38,9 @@ import org.springframework.ai.google.genai.text.GoogleGenAiTextEmbeddingModel;
 import org.springframework.ai.google.genai.text.GoogleGenAiTextEmbeddingOptions;
 
 public class RAGExample {
-  public static void main(String[] args) {
+  private static final int EMBEDDING_DIMENSIONS = 256;
+
+  public static void main(String[] args) throws IOException {
     boolean useVertexAi = Boolean.parseBoolean(System.getenv("USE_VERTEX_AI"));
     Client client;
     GoogleGenAiEmbeddingConnectionDetails connectionDetails;
@@ -72,8 +75,12 @@ public class RAGExample {
         .build();
 
     // read Text in txt format
-    TextReader textReader = new TextReader("classpath:/the-jungle-book.txt");
-    String bookText = textReader.get().getFirst().getText();
+    // decoded once from the memory-mapped file, in windows of up to 1M characters;
+    // repeated runs read the documents back from the binary document cache instead
+    DocumentCache documentCache = DocumentCache.open();
+    MappedTextReader textReader = MappedTextReader.builder("classpath:/the-jungle-book.txt").build();
+    List<Document> book = documentCache.get("classpath:/the-jungle-book.txt", textReader.toString(), textReader::get);
+    String bookText = book.getFirst().getText();
     System.out.printf("Read book %s with length %d, CharSet %s\nExcerpt: %s ...\n\n\n",
         textReader.getCustomMetadata().get(TextReader.SOURCE_METADATA),
         bookText.length(),
@@ -92,8 +99,9 @@ public class RAGExample {
     // 	private int minChunkLengthToEmbed = 5;
     // The maximum number of chunks to generate from a text
     // 	private int maxNumChunks = 10000;
-    TokenTextSplitter tokenTextSplitter = new TokenTextSplitter(5000, 100, 5, 100000, true);
-    List<Document> chunks = tokenTextSplitter.apply(textReader.get());
+    ParallelTokenTextSplitter tokenTextSplitter = new ParallelTokenTextSplitter(5000, 100, 5, 100000, true);
+    List<Document> chunks = documentCache.get("classpath:/the-jungle-book.txt",
+        textReader + " | " + tokenTextSplitter, () -> tokenTextSplitter.apply(book));
 
     System.out.println("Splitting document: " + textReader.getCustomMetadata().get(TextReader.SOURCE_METADATA));
     System.out.println("Chunks size: " + chunks.size());
@@ -103,8 +111,11 @@ public class RAGExample {
           chunk.getText().length());
 
     // Default embedding model: text-embedding-004
+    // vectors reduced from 768 to 256 dimensions by the model, a third of the memory and search time
+    // for a small loss of recall, see EmbeddingDimensionsExample
     GoogleGenAiTextEmbeddingOptions options = GoogleGenAiTextEmbeddingOptions.builder()
         .model("text-embedding-004")
+        .dimensions(EMBEDDING_DIMENSIONS)
         .build();
 
     EmbeddingModel embeddingModel = new GoogleGenAiTextEmbeddingModel(connectionDetails, options);
@@ -112,8 +123,42 @@ public class RAGExample {
     // create a simple (in memory) vector store, good for education purposes
     // for production usage, here's the available list of VectorStore implementations
     // https://docs.spring.io/spring-ai/reference/api/vectordbs.html
-    VectorStore vectorStore = SimpleVectorStore.builder(embeddingModel).build();
-    vectorStore.add(chunks);
+    // the chunk vectors are served from the embedding archive, the queries are embedded by the model
+    PrecomputedEmbeddingModel precomputedEmbeddingModel = PrecomputedEmbeddingModel.over(embeddingModel);
+    VectorStore vectorStore = SimpleVectorStore.builder(precomputedEmbeddingModel).build();
+
+    // the first run embeds the chunks in batches and exports them with their vectors to the archive,
+    // later runs, or other nodes given a copy of the directory, load them without embedding again
+    Path archiveDirectory = Path.of(System.getProperty("java.io.tmpdir"), "spring-ai-workshop", "rag-embeddings");
+    // drop near-duplicate chunks (boilerplate, repeated headers) before paying to embed and store them
+    NearDuplicateFilter nearDuplicateFilter = NearDuplicateFilter.builder()
+        .threshold(0.9)
+        .embeddingDimensions(EMBEDDING_DIMENSIONS)
+        .build();
+    // the archive holds for the same model, book and chunking only
+    String archiveModel = "text-embedding-004-" + EMBEDDING_DIMENSIONS;
+    String archiveSource = DocumentCache.key("classpath:/the-jungle-book.txt",
+        textReader + " | " + tokenTextSplitter + " | " + nearDuplicateFilter);
+    boolean archived = false;
+    if (EmbeddingArchive.exists(archiveDirectory)) {
+      EmbeddingArchive.Manifest manifest = EmbeddingArchive.readManifest(archiveDirectory);
+      archived = archiveModel.equals(manifest.model()) && archiveSource.equals(manifest.source());
+    }
+    if (!archived) {
+      List<Document> uniqueChunks = nearDuplicateFilter.apply(chunks);
+      System.out.println(nearDuplicateFilter.report());
+      long start = System.currentTimeMillis();
+      List<float[]> embeddings = embeddingModel.embed(uniqueChunks, options, new TokenCountBatchingStrategy());
+      EmbeddingArchive.write(archiveDirectory, archiveModel, archiveSource, uniqueChunks, embeddings);
+      System.out.printf("Embedded %d chunks in %d ms, archived in %s%n",
+          uniqueChunks.size(), System.currentTimeMillis() - start, archiveDirectory);
+    }
+    try (EmbeddingArchive archive = EmbeddingArchive.open(archiveDirectory)) {
+      long start = System.currentTimeMillis();
+      archive.addTo(vectorStore, precomputedEmbeddingModel);
+      System.out.printf("Loaded %d chunks with %d dimensions from the archive in %d ms%n",
+          archive.size(), archive.manifest().dimensions(), System.currentTimeMillis() - start);
+    }
 
 
     // perform a similarity search in the Vector database
@@ -127,18 +172,14 @@ public class RAGExample {
     System.out.println("SearchRequest in vector store with the query string: " + message);
     System.out.println("Vector search has found " + similarDocuments.size() + " documents");
 
-    // create system message template
-    SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate("""
+    // system instructions, the retrieved DOCUMENTS are cached with them for the follow-up questions
+    String systemInstruction = """
               You are a helpful assistant, conversing with a user about the subjects contained in a set of documents.
               Use the information from the DOCUMENTS section to provide accurate answers. If unsure or if the answer
               isn't found in the DOCUMENTS section, simply state that you don't know the answer and do not mention
               the DOCUMENTS section.
-              
-              DOCUMENTS:
-              {documents}
-              """);
-    Message systemMessage = systemPromptTemplate.createMessage(
-        Map.of("documents", content));
+              """;
+    String documents = "DOCUMENTS:" + System.lineSeparator() + content;
 
     PromptTemplate userPromptTemplate = new PromptTemplate("""
         Provide an analysis of the book {book} by {author}
@@ -151,12 +192,20 @@ public class RAGExample {
         "author", "Rudyard Kipling",
         "keywords", keywords));
 
-    // call Gemini including the findings of the vector store
-    long start = System.currentTimeMillis();
-    System.out.println("GEMINI: " + geminiChatModel
-        .call(new Prompt(List.of(userMessage, systemMessage)))
-        .getResult().getOutput().getText());
-    System.out.println(
-        "Google GenAI Gemini call took " + (System.currentTimeMillis() - start) + " ms");
+    // call Gemini including the findings of the vector store, then ask follow-up questions about
+    // the same findings: the DOCUMENTS are sent once, later calls reference the cached content
+    try (ContextCache contextCache = ContextCache.builder(geminiChatModel).build()) {
+      for (Message question : List.of(userMessage,
+          new UserMessage("Which characters show friendship in these passages?"),
+          new UserMessage("Describe one adventure from these passages in three sentences."))) {
+        long start = System.currentTimeMillis();
+        System.out.println("GEMINI: " + contextCache.call(systemInstruction, documents, question)
+            .getResult().getOutput().getText());
+        ContextCache.CallStats stats = contextCache.calls().getLast();
+        System.out.printf("Google GenAI Gemini call took %d ms, %d of %d prompt tokens from the cache, %d ms saved%n",
+            System.currentTimeMillis() - start, stats.cachedTokens(), stats.promptTokens(), stats.savedMillis());
+      }
+      System.out.println(contextCache.report());
+    }
   }
 }
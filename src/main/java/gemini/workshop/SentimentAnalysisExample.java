@@ -16,6 +16,7 @@
 package gemini.workshop;
 
 import com.google.genai.Client;
+import gemini.workshop.StreamStopConditions.StopReport;
 import java.util.List;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
@@ -25,8 +26,10 @@ import org.springframework.ai.chat.memory.MessageWindowChatMemory;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.ai.google.genai.GoogleGenAiChatModel;
 import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
 
 public class SentimentAnalysisExample {
 
@@ -119,25 +122,60 @@ public class SentimentAnalysisExample {
 
     // use the fluent ChatClient interface and provision chat history
     // and finer grained control of building the request
+    String userMessage = """
+        In which category does the jungle book by Rudyard Kipling fit in best? 
+        What is the name of the main character? 
+        Is the main character portrayed in one of the following ways: positive, neutral, ambiguous or negative? 
+        Recommend other books with similar characters. 
+        Return book category, main character name, main character sentiment and book recommendations strictly in JSON format""";
+
     long start = System.currentTimeMillis();
-    String response =
+    ChatResponse response =
         ChatClient
             .builder(geminiChatModel)
             .build()
         .prompt()
         .system(systemMessage)
         .advisors(new SimpleLoggerAdvisor(), MessageChatMemoryAdvisor.builder(chatMemory).build())
-        .user("""
-            In which category does the jungle book by Rudyard Kipling fit in best? 
-            What is the name of the main character? 
-            Is the main character portrayed in one of the following ways: positive, neutral, ambiguous or negative? 
-            Recommend other books with similar characters. 
-            Return book category, main character name, main character sentiment and book recommendations strictly in JSON format""")
+        .user(userMessage)
         .call()
-        .content();
-    System.out.println("GEMINI: " + response);
+        .chatResponse();
+    long callMillis = System.currentTimeMillis() - start;
+    System.out.println("GEMINI: " + response.getResult().getOutput().getText());
     System.out.println(
-        "Google GenAI Gemini call took " + (System.currentTimeMillis() - start) + " ms");
+        "Google GenAI Gemini call took " + callMillis + " ms");
+
+    // stream the same request and stop as soon as the JSON answer is complete,
+    // cancelling the request instead of waiting for trailing tokens
+    ChatMemory streamingChatMemory = MessageWindowChatMemory.builder().build();
+    streamingChatMemory.add("examples", messages);
+
+    System.out.print("GEMINI (streaming, stops at end of JSON): ");
+    StopReport report = StreamStopConditions.consume(
+            ChatClient
+                .builder(geminiChatModel)
+                .build()
+            .prompt()
+            .system(systemMessage)
+            .advisors(MessageChatMemoryAdvisor.builder(streamingChatMemory).build())
+            .user(userMessage)
+            .stream()
+            .chatResponse(),
+            StreamStopConditions.jsonComplete(),
+            System.out::print)
+        .block();
+    System.out.println();
+
+    // two separate generations, with different answers: a comparison of the two calls, not an exact saving.
+    // Usage is rarely reported before the cancellation, so the output tokens of both answers are estimated locally
+    TokenCountEstimator tokenCountEstimator = TextChunker.defaultTokenCountEstimator();
+    int fullTokens = tokenCountEstimator.estimate(response.getResult().getOutput().getText());
+    int stoppedTokens = tokenCountEstimator.estimate(report.text());
+    System.out.printf("Streaming call %s after %d chunks, took %d ms vs %d ms for the blocking call%n",
+        report.stopped() ? "stopped early" : "ran to completion",
+        report.chunks(), report.elapsedMillis(), callMillis);
+    System.out.printf("Output tokens (estimated): %d for the blocking call vs %d for the streaming call%n",
+        fullTokens, stoppedTokens);
   }
 }
 
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.springframework.ai.chat.model.ChatResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Client-side stop conditions for streamed generations.
+ * As soon as a condition matches, the stream is cancelled, which cancels the upstream request
+ * instead of paying for trailing tokens the application would throw away.
+ */
+public final class StreamStopConditions {
+
+  /**
+   * Checks the text accumulated so far and returns the offset where the answer is complete,
+   * or -1 to keep streaming.
+   */
+  @FunctionalInterface
+  public interface StopCondition {
+    int matchEnd(CharSequence text);
+  }
+
+  /**
+   * Outcome of a stream consumed under a stop condition.
+   * outputTokens is the last completion token count reported by the model, null if none was sent.
+   */
+  public record StopReport(String text, boolean stopped, int chunks, Integer outputTokens, long elapsedMillis) {}
+
+  private StreamStopConditions() {
+  }
+
+  // stop once the pattern is found, e.g. a sentinel such as "END_OF_ANSWER"
+  public static StopCondition regex(String regex) {
+    Pattern pattern = Pattern.compile(regex);
+    return text -> {
+      Matcher matcher = pattern.matcher(text);
+      return matcher.find() ? matcher.end() : -1;
+    };
+  }
+
+  // stop once the first top-level JSON object or array is closed; one per stream, as it keeps its scan state
+  public static StopCondition jsonComplete() {
+    return new JsonComplete();
+  }
+
+  // stop once the answer reaches maxChars characters
+  public static StopCondition maxChars(int maxChars) {
+    return text -> text.length() >= maxChars ? maxChars : -1;
+  }
+
+  // stop once the check accepts the text; only evaluated at sentence ends, as the check may be expensive
+  public static StopCondition semantic(Predicate<String> check) {
+    return text -> {
+      int end = text.length();
+      while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+        end--;
+      }
+      if (end == 0 || ".!?\n".indexOf(text.charAt(end - 1)) < 0) {
+        return -1;
+      }
+      return check.test(text.subSequence(0, end).toString()) ? end : -1;
+    };
+  }
+
+  // stop at the earliest match of any of the conditions
+  public static StopCondition anyOf(StopCondition... conditions) {
+    return text -> {
+      int earliest = -1;
+      for (StopCondition condition : conditions) {
+        int end = condition.matchEnd(text);
+        if (end >= 0 && (earliest < 0 || end < earliest)) {
+          earliest = end;
+        }
+      }
+      return earliest;
+    };
+  }
+
+  /**
+   * Consumes the stream until the condition matches, then cancels it.
+   * onText receives each chunk of text as it arrives, cut at the match.
+   */
+  public static Mono<StopReport> consume(Flux<ChatResponse> responses, StopCondition condition,
+      Consumer<String> onText) {
+    return Mono.defer(() -> {
+      long start = System.currentTimeMillis();
+      StringBuilder text = new StringBuilder();
+      AtomicBoolean stopped = new AtomicBoolean();
+      AtomicInteger chunks = new AtomicInteger();
+      Integer[] outputTokens = new Integer[1];
+
+      return responses
+          .doOnNext(response -> {
+            chunks.incrementAndGet();
+            if (response.getMetadata() != null && response.getMetadata().getUsage() != null) {
+              Integer completionTokens = response.getMetadata().getUsage().getCompletionTokens();
+              if (completionTokens != null && completionTokens > 0) {
+                outputTokens[0] = completionTokens;
+              }
+            }
+            String chunk = response.getResult() != null && response.getResult().getOutput() != null
+                ? response.getResult().getOutput().getText() : null;
+            if (chunk == null || chunk.isEmpty()) {
+              return;
+            }
+            int previousLength = text.length();
+            text.append(chunk);
+            int end = condition.matchEnd(text);
+            if (end >= 0) {
+              text.setLength(Math.max(end, previousLength));
+              stopped.set(true);
+            }
+            onText.accept(text.substring(previousLength));
+          })
+          // takeUntil cancels the upstream subscription, and with it the model request
+          .takeUntil(response -> stopped.get())
+          .then(Mono.fromSupplier(() -> new StopReport(text.toString(), stopped.get(), chunks.get(),
+              outputTokens[0], System.currentTimeMillis() - start)));
+    });
+  }
+
+  /**
+   * Scans only the text appended since the previous call, keeping the nesting depth and the string and
+   * escape state in between, so a streamed answer is scanned once rather than once per chunk.
+   * A text shorter than the one scanned, so not an extension of it, restarts the scan.
+   */
+  private static final class JsonComplete implements StopCondition {
+    private int scanned;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private int end = -1;
+
+    @Override
+    public synchronized int matchEnd(CharSequence text) {
+      if (text.length() < scanned) {
+        scanned = 0;
+        depth = 0;
+        inString = false;
+        escaped = false;
+        end = -1;
+      }
+      if (end >= 0) {
+        return end;
+      }
+      for (; scanned < text.length(); scanned++) {
+        char c = text.charAt(scanned);
+        if (inString) {
+          if (escaped) {
+            escaped = false;
+          } else if (c == '\\') {
+            escaped = true;
+          } else if (c == '"') {
+            inString = false;
+          }
+        } else if (c == '"' && depth > 0) {
+          inString = true;
+        } else if (c == '{' || c == '[') {
+          depth++;
+        } else if ((c == '}' || c == ']') && depth > 0 && --depth == 0) {
+          end = ++scanned;
+          return end;
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentReader;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+
+/**
+ * Reads a JSON array, or a JSON Lines file, as one document per element while parsing it with the
+ * Jackson streaming parser: only the element being converted is held in memory, so exports of
+ * several GB are read with a constant heap, where JsonReader first builds the tree of the whole file.
+ *
+ * The array is found at arrayPointer, skipping everything else unparsed. The text of a document is made
+ * of "name: value" lines of the values at the text pointers, as JsonReader does with its keys, or the
+ * whole element when no text pointer is set or none matches. Metadata entries take the values at their
+ * pointers; missing and null values are left out.
+ */
+public final class StreamingJsonReader implements DocumentReader {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final Resource resource;
+  private final JsonPointer arrayPointer;
+  private final boolean jsonLines;
+  private final Map<String, JsonPointer> textPointers;
+  private final Map<String, JsonPointer> metadataPointers;
+
+  private StreamingJsonReader(Builder builder) {
+    this.resource = builder.resource;
+    this.arrayPointer = builder.arrayPointer;
+    this.jsonLines = builder.jsonLines != null ? builder.jsonLines : isJsonLines(builder.resource.getFilename());
+    // in the order they were added, the order of the text lines
+    this.textPointers = new LinkedHashMap<>(builder.textPointers);
+    this.metadataPointers = new LinkedHashMap<>(builder.metadataPointers);
+  }
+
+  public static Builder builder(String resourceUrl) {
+    return new Builder(new DefaultResourceLoader().getResource(resourceUrl));
+  }
+
+  public static Builder builder(Resource resource) {
+    return new Builder(resource);
+  }
+
+  /** Reads all elements. Use stream() or iterator() to hold only one element at a time. */
+  @Override
+  public List<Document> get() {
+    try (Stream<Document> documents = stream()) {
+      return documents.toList();
+    }
+  }
+
+  /** One document per element, parsed as the stream is consumed. Close the stream to release the file. */
+  public Stream<Document> stream() {
+    ElementIterator elements = new ElementIterator();
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(elements, Spliterator.ORDERED | Spliterator.NONNULL), false)
+        .onClose(elements::close);
+  }
+
+  /** One document per element; the file is released once the last document has been returned. */
+  public Iterator<Document> iterator() {
+    return new ElementIterator();
+  }
+
+  private final class ElementIterator implements Iterator<Document> {
+    private final JsonParser parser;
+    // false once the elements are exhausted; a single object at arrayPointer is one element
+    private boolean inArray;
+    private boolean singleElement;
+    private Document next;
+
+    ElementIterator() {
+      try {
+        parser = OBJECT_MAPPER.createParser(resource.getInputStream());
+        if (!jsonLines) {
+          JsonToken token = seek(parser, arrayPointer);
+          if (token == JsonToken.START_ARRAY) {
+            inArray = true;
+          } else if (token == JsonToken.START_OBJECT) {
+            singleElement = true;
+          } else {
+            throw new IllegalArgumentException("No JSON array or object at '" + arrayPointer + "' in " + resource);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot read " + resource, e);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        try {
+          JsonNode element = nextElement();
+          if (element == null) {
+            close();
+          } else {
+            next = toDocument(element);
+          }
+        } catch (IOException e) {
+          close();
+          throw new UncheckedIOException("Cannot parse " + resource, e);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Document next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Document document = next;
+      next = null;
+      return document;
+    }
+
+    private JsonNode nextElement() throws IOException {
+      if (jsonLines) {
+        // root values one after the other, whatever the line breaks between them
+        return parser.nextToken() == null ? null : parser.readValueAsTree();
+      }
+      if (singleElement) {
+        singleElement = false;
+        return parser.readValueAsTree();
+      }
+      if (!inArray) {
+        return null;
+      }
+      if (parser.nextToken() == JsonToken.END_ARRAY) {
+        inArray = false;
+        return null;
+      }
+      return parser.readValueAsTree();
+    }
+
+    void close() {
+      try {
+        parser.close();
+      } catch (IOException e) {
+        // read only, nothing is lost
+      }
+    }
+  }
+
+  private Document toDocument(JsonNode element) {
+    StringBuilder text = new StringBuilder();
+    textPointers.forEach((name, pointer) -> {
+      JsonNode value = element.at(pointer);
+      if (!value.isMissingNode()) {
+        text.append(name).append(": ").append(value.isValueNode() ? value.asText() : value.toString())
+            .append(System.lineSeparator());
+      }
+    });
+    if (text.isEmpty()) {
+      // same text as JsonReader without keys
+      text.append(element.isObject()
+          ? OBJECT_MAPPER.convertValue(element, new TypeReference<Map<String, Object>>() {}).toString()
+          : element.isValueNode() ? element.asText() : element.toString());
+    }
+
+    Map<String, Object> metadata = new HashMap<>();
+    metadataPointers.forEach((name, pointer) -> {
+      JsonNode value = element.at(pointer);
+      if (!value.isMissingNode() && !value.isNull()) {
+        metadata.put(name, value.isNumber() ? value.numberValue()
+            : value.isBoolean() ? value.booleanValue()
+            : value.isValueNode() ? value.asText() : value.toString());
+      }
+    });
+    return new Document(text.toString(), metadata);
+  }
+
+  // advances the parser to the value at the pointer, skipping the other members and items unparsed
+  private static JsonToken seek(JsonParser parser, JsonPointer pointer) throws IOException {
+    JsonToken token = parser.nextToken();
+    for (JsonPointer segment = pointer; !segment.matches(); segment = segment.tail()) {
+      if (token == JsonToken.START_OBJECT) {
+        token = seekMember(parser, segment.getMatchingProperty());
+      } else if (token == JsonToken.START_ARRAY && segment.getMatchingIndex() >= 0) {
+        token = seekItem(parser, segment.getMatchingIndex());
+      } else {
+        return null;
+      }
+      if (token == null) {
+        return null;
+      }
+    }
+    return token;
+  }
+
+  private static JsonToken seekMember(JsonParser parser, String name) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      JsonToken value = parser.nextToken();
+      if (field.equals(name)) {
+        return value;
+      }
+      parser.skipChildren();
+    }
+    return null;
+  }
+
+  private static JsonToken seekItem(JsonParser parser, int index) throws IOException {
+    for (int i = 0; ; i++) {
+      JsonToken value = parser.nextToken();
+      if (value == JsonToken.END_ARRAY || value == null) {
+        return null;
+      }
+      if (i == index) {
+        return value;
+      }
+      parser.skipChildren();
+    }
+  }
+
+  private static boolean isJsonLines(String filename) {
+    return filename != null && (filename.endsWith(".jsonl") || filename.endsWith(".ndjson"));
+  }
+
+  public static final class Builder {
+    private final Resource resource;
+    private JsonPointer arrayPointer = JsonPointer.empty();
+    private Boolean jsonLines;
+    private final Map<String, JsonPointer> textPointers = new LinkedHashMap<>();
+    private final Map<String, JsonPointer> metadataPointers = new LinkedHashMap<>();
+
+    private Builder(Resource resource) {
+      this.resource = resource;
+    }
+
+    // where the array of elements is, e.g. "/data/items"; the root by default
+    public Builder arrayPointer(String arrayPointer) {
+      this.arrayPointer = JsonPointer.compile(arrayPointer);
+      return this;
+    }
+
+    // one root value per element, detected from the .jsonl and .ndjson extensions by default
+    public Builder jsonLines(boolean jsonLines) {
+      this.jsonLines = jsonLines;
+      return this;
+    }
+
+    /** Adds the values at the pointers to the text, each named after the last segment of its pointer. */
+    public Builder text(String... pointers) {
+      for (String pointer : pointers) {
+        JsonPointer compiled = JsonPointer.compile(pointer);
+        textPointers.put(compiled.last() != null ? compiled.last().getMatchingProperty() : pointer, compiled);
+      }
+      return this;
+    }
+
+    public Builder metadata(String name, String pointer) {
+      metadataPointers.put(name, JsonPointer.compile(pointer));
+      return this;
+    }
+
+    public StreamingJsonReader build() {
+      return new StreamingJsonReader(this);
+    }
+  }
+}
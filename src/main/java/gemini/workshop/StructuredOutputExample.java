@@ -93,7 +93,8 @@ public class StructuredOutputExample {
 
 		record BooksAuthor(String writer, List<String> books) {}
 
-		BeanOutputConverter<BooksAuthor> beanOutputConverter = new BeanOutputConverter<>(BooksAuthor.class);
+		// decode the bean with the precompiled Blackbird codecs
+		BeanOutputConverter<BooksAuthor> beanOutputConverter = new BeanOutputConverter<>(BooksAuthor.class, ToolCodecs.objectMapper());
 
 		String format = beanOutputConverter.getFormat();
 		String writer = "Gabriel Garcia Marquez";
@@ -17,12 +17,12 @@ package gemini.workshop;
 
 import com.google.genai.Client;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -36,9 +36,23 @@ import org.springframework.ai.google.genai.GoogleGenAiChatModel;
 import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
 import org.springframework.ai.reader.TextReader;
 
+/**
+ * Summarizes The Waste Land, The Jungle Book and both books together with the strategy the planner picks.
+ * With a 1M-token context window every one of them fits in a single prompt, so to see the other patterns
+ * at work pass the strategy to run as argument: STUFF, MAP_REDUCE, TREE_REDUCE, or ALL to run each of them
+ * on every document and compare their predicted and actual latency.
+ */
 public class SummarizationExample {
-  private static final int CHUNK_SIZE = 10000;  // Number of words in each window
-  private static final int OVERLAP_SIZE = 2000;
+  // chunks are sized in tokens to fill the request concurrency within the model's context and quota
+  private static final int CONTEXT_WINDOW_TOKENS = 1_048_576;
+  private static final int RESERVED_TOKENS = 8_192;  // prompt template and sub-summary output
+  private static final int CONCURRENCY = 8;
+  private static final int TOKENS_PER_MINUTE = 1_000_000;  // adjust to the quota of your project
+  // bump whenever the sub-summary prompts change, checkpointed summaries of other versions are not reused
+  private static final String PROMPT_VERSION = "sub-summary-v1";
+  private static final String CHECKPOINT_DIR = "checkpoints";
+  private static final int MERGE_FAN_IN = 4;  // adjacent sub-summaries merged into one partial summary
+  private static final int REDUCE_BATCH_TOKENS = 8_000;  // bound on the sub-summaries combined in one prompt
 
   public static void main(String[] args) {
 
@@ -64,22 +78,78 @@ public class SummarizationExample {
             .build())
         .build();
 
-    try{
-      // summarization using the Stuffing pattern
-      summarizationStuffing(geminiChatModel);
+    // the planner picks the fastest pattern fitting the model for each input, and learns from each run
+    SummarizationPlanner planner = SummarizationPlanner.builder()
+        .contextWindowTokens(CONTEXT_WINDOW_TOKENS)
+        .reservedTokens(RESERVED_TOKENS)
+        .concurrency(CONCURRENCY)
+        .tokensPerMinute(TOKENS_PER_MINUTE)
+        .fanIn(MERGE_FAN_IN)
+        .batchTokens(REDUCE_BATCH_TOKENS)
+        .build();
 
-      // summarization using the MapReduce pattern
-      summarizationMapReduce(geminiChatModel);
+    String wasteland = new TextReader("classpath:/The-Wasteland-TSEliot-public.txt").get().getFirst().getText();
+    String jungleBook = new TextReader("classpath:/the-jungle-book.txt").get().getFirst().getText();
+    Map<String, List<String>> documents = new LinkedHashMap<>();
+    documents.put("the-wasteland", List.of(wasteland));
+    documents.put("the-jungle-book", List.of(jungleBook));
+    documents.put("both-books", List.of(jungleBook, wasteland));
+
+    // the strategies to run, the one the planner picks unless given as argument
+    String mode = args.length > 0 ? args[0].toUpperCase(Locale.ROOT) : "PLANNER";
+    List<SummarizationPlanner.Strategy> strategies = switch (mode) {
+      case "PLANNER" -> List.of();
+      case "ALL" -> List.of(SummarizationPlanner.Strategy.values());
+      default -> List.of(SummarizationPlanner.Strategy.valueOf(mode));
+    };
+
+    try{
+      for (Map.Entry<String, List<String>> document : documents.entrySet()) {
+        String text = String.join("\n\n", document.getValue());
+        SummarizationPlanner.Plan chosen = planner.plan(text);
+        System.out.println("Planner: " + document.getKey() + " (" + chosen.documentTokens() + " tokens) -> "
+            + chosen.strategy() + ", predicted " + chosen.predictedMillis() + " ms, candidates " + chosen.candidates());
+
+        List<SummarizationPlanner.Plan> plans = new ArrayList<>();
+        if (strategies.isEmpty()) {
+          plans.add(chosen);
+        }
+        for (SummarizationPlanner.Strategy strategy : strategies) {
+          if (strategy == SummarizationPlanner.Strategy.STUFF
+              && !chosen.candidates().containsKey(SummarizationPlanner.Strategy.STUFF)) {
+            System.out.println("Planner: " + document.getKey() + " does not fit in one prompt, skipping STUFF");
+            continue;
+          }
+          plans.add(planner.plan(chosen.documentTokens(), strategy));
+        }
+        for (SummarizationPlanner.Plan plan : plans) {
+          run(geminiChatModel, planner, document.getKey(), document.getValue(), plan);
+        }
+      }
     }catch(IOException | ExecutionException | InterruptedException e){
       System.out.println("Exception encountered while summarizing a document: " + e.getMessage());
     }
   }
 
-  private static void summarizationStuffing(GoogleGenAiChatModel geminiChatModel) throws IOException {
-    // read book
-    TextReader textReader = new TextReader("classpath:/The-Wasteland-TSEliot-public.txt");
-    String bookText = textReader.get().getFirst().getText();
+  private static void run(GoogleGenAiChatModel geminiChatModel, SummarizationPlanner planner, String name,
+      List<String> bookTexts, SummarizationPlanner.Plan plan)
+      throws IOException, ExecutionException, InterruptedException {
+    System.out.println("Running " + plan.strategy() + " on " + name + ", predicted " + plan.predictedMillis() + " ms");
+    long start = System.currentTimeMillis();
+    switch (plan.strategy()) {
+      // summarization using the Stuffing pattern
+      case STUFF -> summarizationStuffing(geminiChatModel, bookTexts);
+      // summarization using the MapReduce pattern
+      case MAP_REDUCE -> summarizationMapReduce(geminiChatModel, name, bookTexts, plan.chunkTokens());
+      // summarization using a hierarchical (tree) reduce
+      case TREE_REDUCE -> summarizationTreeReduce(geminiChatModel, bookTexts, plan.chunkTokens());
+    }
+    SummarizationPlanner.Decision decision = planner.record(plan, System.currentTimeMillis() - start);
+    System.out.printf("%nPlanner: %s predicted %d ms, actual %d ms (%+.0f%%)%n", plan.strategy(),
+        plan.predictedMillis(), decision.actualMillis(), decision.predictionError() * 100);
+  }
 
+  private static void summarizationStuffing(GoogleGenAiChatModel geminiChatModel, List<String> bookTexts) {
     // create system message template
     SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate("""
         You are a helpful AI assistant.
@@ -91,15 +161,15 @@ public class SummarizationExample {
     );
     Message systemMessage = systemPromptTemplate.createMessage(
         Map.of("name", "Gemini", "voice", "literary critic"));
-      String title = "", author = "";
 
     // create user message template
     PromptTemplate userPromptTemplate = PromptTemplate.builder().template("""
-            Please provide a concise summary covering the key points of the book {title} by {author}.
-            If you do not have the information, use Google web search to ground your answer.
+            Please provide a concise summary covering the key points of the text delimited by triple backquotes.
             Do not make information up
+
+            ```{content}```
         """)
-        .variables(Map.of("title", title, "author", author))
+        .variables(Map.of("content", String.join("\n\n", bookTexts)))
         .build();
     Message userMessage = userPromptTemplate.createMessage();
 
@@ -114,12 +184,8 @@ public class SummarizationExample {
     System.out.print("Summarization (stuffing test) took " + (System.currentTimeMillis() - start) + " milliseconds");
   }
 
-  private static void summarizationMapReduce(GoogleGenAiChatModel geminiChatModel)
-      throws ExecutionException, InterruptedException {
-    // read book
-    TextReader textReader = new TextReader("classpath:/The-Wasteland-TSEliot-public.txt");
-    String bookText = textReader.get().getFirst().getText();
-
+  private static void summarizationMapReduce(GoogleGenAiChatModel geminiChatModel, String name,
+      List<String> bookTexts, int chunkTokens) throws IOException, ExecutionException, InterruptedException {
     // create system message template
     SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate("""
         You are a helpful AI assistant.
@@ -131,46 +197,95 @@ public class SummarizationExample {
 
     long startTime = System.currentTimeMillis();
 
-    int length = bookText.length();
-    List<CompletableFuture<Map<Integer, String>>> futures = new ArrayList<>();
     ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
-    Map<Integer, String> resultMap = new TreeMap<>(); // TreeMap to automatically sort by key
 
     //------
-    // Note: test with different values for the CHUNG and OVERLAP_SIZE
+    // Note: test with different values for the CONCURRENCY and TOKENS_PER_MINUTE
     //----
-    for (int i = 0; i < length; i += (CHUNK_SIZE - OVERLAP_SIZE)) {
-      final int index = i / (CHUNK_SIZE - OVERLAP_SIZE); // Calculate chunk index
-      int end = Math.min(i + CHUNK_SIZE, length);
-      String chunk = bookText.substring(i, end);
-
-      CompletableFuture<Map<Integer, String>> future = CompletableFuture.supplyAsync(() -> processChunk(index,
-          chunk, systemMessage, geminiChatModel), executor);
-      futures.add(future);
+    TextChunker chunker = TextChunker.builder()
+        .chunkTokens(chunkTokens)
+        .overlapTokens(chunkTokens / 10)
+        .build();
+    List<TextChunker.Chunk> chunks = bookTexts.stream()
+        .flatMap(bookText -> chunker.split(bookText).stream())
+        .toList();
+    System.out.println("Summarizing " + chunks.size() + " chunks of up to " + chunkTokens + " tokens");
+
+    // sub-summaries and partial summaries already in the checkpoint are reused when the job is rerun,
+    // only the missing or failed ones are requested again
+    String promptVersion = PROMPT_VERSION + "/" + System.getenv("GEMINI_MODEL");
+    try (SummaryCheckpoint checkpoint = SummaryCheckpoint.open(
+        Path.of(CHECKPOINT_DIR, name + "-map-reduce.jsonl"), promptVersion)) {
+      List<CompletableFuture<String>> futures = chunks.stream()
+          .map(chunk -> CompletableFuture.supplyAsync(() -> checkpoint.summarize(chunk.index(), chunk.text(),
+              text -> processChunk("", text, systemMessage, geminiChatModel)), executor))
+          .toList();
+
+      // no barrier on the whole map phase: adjacent sub-summaries are merged as soon as they are all done,
+      // so the reduce overlaps the slowest chunks, and the merge order follows the chunk order
+      TreeReducer reducer = TreeReducer.builder(batch -> checkpoint.summarize(-1, batch,
+              text -> processChunk("", text, systemMessage, geminiChatModel)))
+          .fanIn(MERGE_FAN_IN)
+          .executor(executor)
+          .build();
+      String output = reducer.reduceAsync(futures, context -> processSummary(context, systemMessage, geminiChatModel))
+          .get();
+      System.out.println(output);
+      System.out.println("Summary checkpoint: " + checkpoint.stats());
     }
+    System.out.print("Summarization (map-reduce) took " + (System.currentTimeMillis() - startTime) + " milliseconds");
 
-    // Wait for all futures to complete and collect the results in resultMap
-    CompletableFuture<Void> allDone = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-        .thenAccept(v -> futures.forEach(f -> f.thenAccept(resultMap::putAll)));
+    executor.shutdown(); // Shutdown the executor
+  }
+
+  private static void summarizationTreeReduce(GoogleGenAiChatModel geminiChatModel, List<String> bookTexts,
+      int chunkTokens) {
+    // create system message template
+    SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate("""
+        You are a helpful AI assistant.
+        You are an AI assistant that helps people summarize information in a concise way.
+        Strictly ignore Project Gutenberg & ignore copyright notice in summary output.
+        """
+    );
+    Message systemMessage = systemPromptTemplate.createMessage();
 
-    allDone.get(); // Wait for all processing to complete
+    long startTime = System.currentTimeMillis();
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
 
-    // Build the final context string from the sorted entries in the resultMap
-    StringBuilder contextBuilder = new StringBuilder();
-    for (Entry<Integer, String> entry : resultMap.entrySet()) {
-          //            System.out.println("Index " + entry.getKey() + ": " + entry.getValue());
-      contextBuilder.append(entry.getValue()).append("\n");
+    // map: sub-summaries of every chunk of every book, in reading order
+    TextChunker chunker = TextChunker.builder()
+        .chunkTokens(chunkTokens)
+        .overlapTokens(chunkTokens / 10)
+        .build();
+    List<TextChunker.Chunk> chunks = bookTexts.stream()
+        .flatMap(bookText -> chunker.split(bookText).stream())
+        .toList();
+    OrderedResults<String> results = OrderedResults.fanOut(chunks,
+        chunk -> processChunk("", chunk.text(), systemMessage, geminiChatModel), executor).await();
+
+    // a failed chunk leaves a gap in the summary rather than failing the whole document
+    for (OrderedResults.ChunkError error : results.errors()) {
+      System.out.println("Chunk " + error.index() + " could not be summarized: " + error.error().getMessage());
     }
+    List<String> subSummaries = results.values();
 
-    String context = contextBuilder.toString();
-    String output = processSummary(context, systemMessage, geminiChatModel);
+    // reduce: combine batches of sub-summaries level by level, then write the final summary
+    TreeReducer reducer = TreeReducer.builder(batch -> processChunk("", batch, systemMessage, geminiChatModel))
+        .batchTokens(REDUCE_BATCH_TOKENS)
+        .executor(executor)
+        .build();
+    String output = reducer.reduce(subSummaries, context -> processSummary(context, systemMessage, geminiChatModel));
     System.out.println(output);
-    System.out.print("Summarization (map-reduce) took " + (System.currentTimeMillis() - startTime) + " milliseconds");
+    for (TreeReducer.LevelStats level : reducer.levels()) {
+      System.out.printf("Tree reduce level %d: %d summaries, %d tokens, in %d batches of at most %d tokens, %d ms%n",
+          level.depth(), level.summaries(), level.tokens(), level.batches(), level.maxBatchTokens(), level.millis());
+    }
+    System.out.print("Summarization (tree-reduce) of " + subSummaries.size() + " chunks took "
+        + (System.currentTimeMillis() - startTime) + " milliseconds");
 
-    executor.shutdown(); // Shutdown the executor
+    executor.shutdown();
   }
 
-
   //--- Helper methods ---
   private static String processSummary(String context, Message systemMessage, GoogleGenAiChatModel geminiChatModel) {
     long start = System.currentTimeMillis();
@@ -195,18 +310,6 @@ public class SummarizationExample {
     return response.getResult().getOutput().getText();
   }
 
-  private static Map<Integer, String> processChunk(
-      Integer index,
-      String chunk,
-      Message systemMessage,
-      GoogleGenAiChatModel geminiChatModel) {
-
-    Map<Integer, String> outputWithIndex = new HashMap<>();
-    String output = processChunk("", chunk, systemMessage, geminiChatModel);
-    outputWithIndex.put(index, output);
-    return outputWithIndex;
-  }
-
   private static String processChunk(
       String context,
       String chunk,
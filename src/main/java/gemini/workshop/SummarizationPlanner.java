@@ -0,0 +1,298 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+/**
+ * Picks the fastest summarization strategy which fits the model: a single stuffed prompt when the
+ * document fits in the context window, map-reduce with chunks filling the request concurrency when their
+ * sub-summaries fit in one final prompt, or else a tree reduce of the same chunks in bounded batches.
+ * Latency is predicted per strategy from the token count of the input, the context window and a
+ * per-request overhead plus a per-token cost along the critical path of each strategy's calls.
+ * Recording the actual latency of a run calibrates the per-token cost for the next plans,
+ * and every decision is kept with its predicted and actual latency.
+ */
+public final class SummarizationPlanner {
+
+  public enum Strategy { STUFF, MAP_REDUCE, TREE_REDUCE }
+
+  /**
+   * The chosen strategy with its chunk size, and the predicted latency of every feasible strategy.
+   * The critical path is the chain of calls that cannot overlap, and the tokens they read and write.
+   */
+  public record Plan(Strategy strategy, int documentTokens, int chunkTokens, int chunks, long predictedMillis,
+                     int criticalPathCalls, double criticalPathTokens, Map<Strategy, Long> candidates) {}
+
+  /** A plan together with the latency observed when running it. */
+  public record Decision(Plan plan, long actualMillis) {
+    public double predictionError() {
+      return actualMillis == 0 ? 0.0 : (double) (plan.predictedMillis() - actualMillis) / actualMillis;
+    }
+  }
+
+  // weight of the calibration from the latest run against the history
+  private static final double CALIBRATION_WEIGHT = 0.5;
+
+  private final int contextWindowTokens;
+  private final int reservedTokens;
+  private final int concurrency;
+  private final int tokensPerMinute;
+  private final int subSummaryTokens;
+  private final int summaryTokens;
+  private final int fanIn;
+  private final int batchTokens;
+  private final long requestOverheadMillis;
+  private final double millisPerInputToken;
+  private final double millisPerOutputToken;
+  private final TokenCountEstimator tokenCountEstimator;
+  private final List<Decision> decisions = Collections.synchronizedList(new ArrayList<>());
+  // observed over predicted per-token cost, updated after every run
+  private volatile double calibration = 1.0;
+
+  private SummarizationPlanner(Builder builder) {
+    this.contextWindowTokens = builder.contextWindowTokens;
+    this.reservedTokens = builder.reservedTokens;
+    this.concurrency = builder.concurrency;
+    this.tokensPerMinute = builder.tokensPerMinute;
+    this.subSummaryTokens = builder.subSummaryTokens;
+    this.summaryTokens = builder.summaryTokens;
+    this.fanIn = builder.fanIn;
+    this.batchTokens = builder.batchTokens;
+    this.requestOverheadMillis = builder.requestOverhead.toMillis();
+    this.millisPerInputToken = builder.millisPerInputToken;
+    this.millisPerOutputToken = builder.millisPerOutputToken;
+    this.tokenCountEstimator = builder.tokenCountEstimator;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public Plan plan(String document) {
+    return plan(tokenCountEstimator.estimate(document));
+  }
+
+  public Plan plan(int documentTokens) {
+    Map<Strategy, Plan> candidates = candidates(documentTokens);
+    Map<Strategy, Long> predictions = new EnumMap<>(Strategy.class);
+    candidates.forEach((strategy, plan) -> predictions.put(strategy, plan.predictedMillis()));
+    Plan fastest = candidates.values().stream()
+        .min((a, b) -> Long.compare(a.predictedMillis(), b.predictedMillis()))
+        .orElseThrow();
+    return withCandidates(fastest, predictions);
+  }
+
+  /**
+   * The plan of a given strategy, to run or compare each one whatever the planner would choose: map-reduce
+   * and tree reduce run on any input, stuffing only when the document fits in the context window.
+   */
+  public Plan plan(int documentTokens, Strategy strategy) {
+    Map<Strategy, Plan> candidates = candidates(documentTokens);
+    Map<Strategy, Long> predictions = new EnumMap<>(Strategy.class);
+    candidates.forEach((candidate, plan) -> predictions.put(candidate, plan.predictedMillis()));
+    Plan plan = candidates.get(strategy);
+    if (plan == null && strategy == Strategy.STUFF) {
+      throw new IllegalArgumentException("A document of " + documentTokens + " tokens does not fit in a "
+          + contextWindowTokens + " tokens context window");
+    }
+    return withCandidates(plan != null ? plan : reducePlans(documentTokens).get(strategy), predictions);
+  }
+
+  // the feasible strategies: stuffing when the document fits, map-reduce when its sub-summaries fit
+  // in one final prompt, a tree reduce with bounded batches when they do not
+  private Map<Strategy, Plan> candidates(int documentTokens) {
+    Map<Strategy, Plan> candidates = new EnumMap<>(Strategy.class);
+    if (documentTokens <= contextWindowTokens - reservedTokens) {
+      candidates.put(Strategy.STUFF, candidate(Strategy.STUFF, documentTokens, documentTokens, 1,
+          1, documentTokens + summaryTokens * outputCost()));
+    }
+    Map<Strategy, Plan> reducePlans = reducePlans(documentTokens);
+    Plan mapReduce = reducePlans.get(Strategy.MAP_REDUCE);
+    // the merges of map-reduce are bounded in count only, safe as long as all sub-summaries fit together
+    Strategy reduce = (long) mapReduce.chunks() * subSummaryTokens <= contextWindowTokens - reservedTokens
+        ? Strategy.MAP_REDUCE : Strategy.TREE_REDUCE;
+    candidates.put(reduce, reducePlans.get(reduce));
+    return candidates;
+  }
+
+  // both reduce strategies map the same chunks, sized to run in one wave, and differ in how they reduce
+  private Map<Strategy, Plan> reducePlans(int documentTokens) {
+    int chunkTokens = TextChunker.chunkTokensFor(documentTokens, contextWindowTokens, reservedTokens,
+        concurrency, tokensPerMinute);
+    int chunks = chunkCount(documentTokens, chunkTokens);
+    int waves = ceilDiv(chunks, concurrency);
+    double mapTokens = waves * (chunkTokens + subSummaryTokens * outputCost());
+
+    // fanIn-way merges of the sub-summaries, then the final summary
+    int mergeLevels = 0;
+    for (int level = chunks; level > fanIn; level = ceilDiv(level, fanIn)) {
+      mergeLevels++;
+    }
+    Plan mapReduce = candidate(Strategy.MAP_REDUCE, documentTokens, chunkTokens, chunks,
+        waves + mergeLevels + 1,
+        mapTokens
+            + mergeLevels * (fanIn * subSummaryTokens + subSummaryTokens * outputCost())
+            + Math.min(chunks, fanIn) * subSummaryTokens + summaryTokens * outputCost());
+
+    // batches of sub-summaries bounded in tokens, reduced level by level until they fit in one
+    int perBatch = Math.max(2, batchTokens / subSummaryTokens);
+    int treeLevels = 0;
+    for (int level = chunks; (long) level * subSummaryTokens > batchTokens; level = ceilDiv(level, perBatch)) {
+      treeLevels++;
+    }
+    Plan treeReduce = candidate(Strategy.TREE_REDUCE, documentTokens, chunkTokens, chunks,
+        waves + treeLevels + 1,
+        mapTokens
+            + treeLevels * (batchTokens + subSummaryTokens * outputCost())
+            + Math.min((long) chunks * subSummaryTokens, batchTokens) + summaryTokens * outputCost());
+
+    return Map.of(Strategy.MAP_REDUCE, mapReduce, Strategy.TREE_REDUCE, treeReduce);
+  }
+
+  private static Plan withCandidates(Plan plan, Map<Strategy, Long> candidates) {
+    return new Plan(plan.strategy(), plan.documentTokens(), plan.chunkTokens(), plan.chunks(),
+        plan.predictedMillis(), plan.criticalPathCalls(), plan.criticalPathTokens(), Map.copyOf(candidates));
+  }
+
+  /** Records the observed latency of a plan and recalibrates the per-token cost from it. */
+  public Decision record(Plan plan, long actualMillis) {
+    double predictedTokenMillis = plan.criticalPathTokens() * millisPerInputToken;
+    double observedTokenMillis = actualMillis - (double) plan.criticalPathCalls() * requestOverheadMillis;
+    if (predictedTokenMillis > 0 && observedTokenMillis > 0) {
+      calibration = (1 - CALIBRATION_WEIGHT) * calibration + CALIBRATION_WEIGHT * observedTokenMillis / predictedTokenMillis;
+    }
+    Decision decision = new Decision(plan, actualMillis);
+    decisions.add(decision);
+    return decision;
+  }
+
+  public List<Decision> decisions() {
+    return List.copyOf(decisions);
+  }
+
+  private Plan candidate(Strategy strategy, int documentTokens, int chunkTokens, int chunks,
+      int criticalPathCalls, double criticalPathTokens) {
+    long predictedMillis = Math.round(criticalPathCalls * requestOverheadMillis
+        + criticalPathTokens * millisPerInputToken * calibration);
+    return new Plan(strategy, documentTokens, chunkTokens, chunks, predictedMillis, criticalPathCalls,
+        criticalPathTokens, Map.of());
+  }
+
+  // output tokens expressed in input tokens: generation is much slower than reading the prompt
+  private double outputCost() {
+    return millisPerOutputToken / millisPerInputToken;
+  }
+
+  // chunks overlap by a tenth of their size
+  private static int chunkCount(int documentTokens, int chunkTokens) {
+    return Math.max(1, (int) Math.ceil(documentTokens / (chunkTokens * 0.9)));
+  }
+
+  private static int ceilDiv(int a, int b) {
+    return (a + b - 1) / b;
+  }
+
+  public static final class Builder {
+    private int contextWindowTokens = 1_048_576;
+    private int reservedTokens = 8_192;
+    private int concurrency = 8;
+    private int tokensPerMinute = 1_000_000;
+    private int subSummaryTokens = 400;
+    private int summaryTokens = 800;
+    private int fanIn = 4;
+    private int batchTokens = 8_000;
+    private Duration requestOverhead = Duration.ofMillis(600);
+    private double millisPerInputToken = 0.02;
+    private double millisPerOutputToken = 5.0;
+    private TokenCountEstimator tokenCountEstimator = TextChunker.defaultTokenCountEstimator();
+
+    private Builder() {
+    }
+
+    public Builder contextWindowTokens(int contextWindowTokens) {
+      this.contextWindowTokens = contextWindowTokens;
+      return this;
+    }
+
+    // room kept in every prompt for the instructions and the generated summary
+    public Builder reservedTokens(int reservedTokens) {
+      this.reservedTokens = reservedTokens;
+      return this;
+    }
+
+    public Builder concurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    public Builder tokensPerMinute(int tokensPerMinute) {
+      this.tokensPerMinute = tokensPerMinute;
+      return this;
+    }
+
+    public Builder subSummaryTokens(int subSummaryTokens) {
+      this.subSummaryTokens = subSummaryTokens;
+      return this;
+    }
+
+    public Builder summaryTokens(int summaryTokens) {
+      this.summaryTokens = summaryTokens;
+      return this;
+    }
+
+    public Builder fanIn(int fanIn) {
+      this.fanIn = Math.max(2, fanIn);
+      return this;
+    }
+
+    public Builder batchTokens(int batchTokens) {
+      this.batchTokens = batchTokens;
+      return this;
+    }
+
+    public Builder requestOverhead(Duration requestOverhead) {
+      this.requestOverhead = requestOverhead;
+      return this;
+    }
+
+    // starting point of the latency model, refined by every recorded run
+    public Builder millisPerInputToken(double millisPerInputToken) {
+      this.millisPerInputToken = millisPerInputToken;
+      return this;
+    }
+
+    public Builder millisPerOutputToken(double millisPerOutputToken) {
+      this.millisPerOutputToken = millisPerOutputToken;
+      return this;
+    }
+
+    public Builder tokenCountEstimator(TokenCountEstimator tokenCountEstimator) {
+      this.tokenCountEstimator = tokenCountEstimator;
+      return this;
+    }
+
+    public SummarizationPlanner build() {
+      return new SummarizationPlanner(this);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Append-only checkpoint of chunk summaries, so a restarted summarization job only redoes the chunks
+ * which are missing or failed. Every result is appended as one JSON line keyed by the SHA-256 of
+ * the prompt version and the chunk text: editing a prompt or a chunk invalidates its entry,
+ * and the file is never rewritten, only replayed on open, the last line of a key winning.
+ */
+public final class SummaryCheckpoint implements AutoCloseable {
+
+  /** Entries reused from earlier runs, computed in this run, and failed in this run. */
+  public record CheckpointStats(long reused, long computed, long failed) {}
+
+  @JsonInclude(Include.NON_NULL)
+  private record Entry(String key, int index, String summary, String error) {}
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final String promptVersion;
+  private final Map<String, String> summaries = new ConcurrentHashMap<>();
+  private final BufferedWriter writer;
+  private final LongAdder reused = new LongAdder();
+  private final LongAdder computed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  private SummaryCheckpoint(Path file, String promptVersion) throws IOException {
+    this.promptVersion = promptVersion;
+    String content = "";
+    if (Files.exists(file)) {
+      // decoded leniently: a crash may have cut a multi-byte character in half
+      content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+      replay(content.lines().toList());
+    } else if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    // terminate a line cut short by a crash, so the next entry starts on a line of its own
+    if (!content.isEmpty() && !content.endsWith("\n")) {
+      writer.newLine();
+    }
+  }
+
+  /**
+   * Opens the checkpoint file, creating it when missing. Bump the prompt version whenever a prompt
+   * template or the model changes, so summaries produced by the old prompt are not reused.
+   */
+  public static SummaryCheckpoint open(Path file, String promptVersion) throws IOException {
+    return new SummaryCheckpoint(file, promptVersion);
+  }
+
+  /** Returns the checkpointed summary of the text, or summarizes it and appends the result. */
+  public String summarize(int index, String text, UnaryOperator<String> summarize) {
+    String key = key(text);
+    String summary = summaries.get(key);
+    if (summary != null) {
+      reused.increment();
+      return summary;
+    }
+    try {
+      summary = summarize.apply(text);
+    } catch (RuntimeException e) {
+      // failures are logged too, a restart retries them
+      failed.increment();
+      append(new Entry(key, index, null, String.valueOf(e.getMessage())));
+      throw e;
+    }
+    computed.increment();
+    summaries.put(key, summary);
+    append(new Entry(key, index, summary, null));
+    return summary;
+  }
+
+  public CheckpointStats stats() {
+    return new CheckpointStats(reused.sum(), computed.sum(), failed.sum());
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (writer) {
+      writer.close();
+    }
+  }
+
+  private void replay(List<String> lines) {
+    for (String line : lines) {
+      try {
+        Entry entry = OBJECT_MAPPER.readValue(line, Entry.class);
+        if (entry.summary() != null) {
+          summaries.put(entry.key(), entry.summary());
+        } else {
+          summaries.remove(entry.key());
+        }
+      } catch (JsonProcessingException e) {
+        // a line cut short by a crash, its chunk is summarized again
+      }
+    }
+  }
+
+  // one line per result, flushed right away so a crash loses at most the line being written
+  private void append(Entry entry) {
+    try {
+      String line = OBJECT_MAPPER.writeValueAsString(entry);
+      synchronized (writer) {
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot append to the summary checkpoint", e);
+    }
+  }
+
+  private String key(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(promptVersion.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
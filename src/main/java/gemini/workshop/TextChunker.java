@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+/**
+ * Splits a text into windows sized in tokens rather than characters, cutting only between sentences
+ * and preferring paragraph ends, with a token overlap carried from one window into the next.
+ * Token counts come from a TokenCountEstimator, jtokkit's cl100k encoding by default, which tracks
+ * the Gemini tokenizer closely enough for sizing prompts.
+ */
+public final class TextChunker {
+
+  /** A window of the source text: its position in the text, its token count and its position in the sequence. */
+  public record Chunk(int index, String text, int tokens, int start, int end) {}
+
+  // sentence or word run, the unit chunks are assembled from
+  private record Unit(int start, int end, int tokens, boolean paragraphStart) {}
+
+  // loading the BPE ranks takes hundreds of milliseconds, share one estimator across instances
+  private static final class DefaultTokenCountEstimator {
+    private static final TokenCountEstimator INSTANCE = new JTokkitTokenCountEstimator();
+  }
+
+  private static final Pattern PARAGRAPH_BREAK = Pattern.compile("\\n\\s*\\n");
+  private static final Pattern WORD = Pattern.compile("\\S+\\s*");
+  // never size a window below this, small prompts pay the fixed per-request latency for little text
+  private static final int MIN_CHUNK_TOKENS = 1_000;
+
+  private final int chunkTokens;
+  private final int overlapTokens;
+  private final double paragraphSlack;
+  private final TokenCountEstimator tokenCountEstimator;
+
+  private TextChunker(Builder builder) {
+    this.chunkTokens = builder.chunkTokens;
+    this.overlapTokens = builder.overlapTokens;
+    this.paragraphSlack = builder.paragraphSlack;
+    this.tokenCountEstimator = builder.tokenCountEstimator;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Window size filling the available concurrency in a single wave of requests: the document is spread
+   * over as many chunks as requests can run at once, each chunk bounded by what fits in the context window
+   * next to the prompt and the output, and by the share of the per-minute token quota of one request.
+   */
+  public static int chunkTokensFor(int documentTokens, int contextWindowTokens, int reservedTokens,
+      int concurrency, int tokensPerMinute) {
+    int maxTokens = Math.min(contextWindowTokens - reservedTokens, tokensPerMinute / Math.max(1, concurrency));
+    int waveTokens = (documentTokens + concurrency - 1) / Math.max(1, concurrency);
+    return Math.max(Math.min(MIN_CHUNK_TOKENS, maxTokens), Math.min(waveTokens, maxTokens));
+  }
+
+  static TokenCountEstimator defaultTokenCountEstimator() {
+    return DefaultTokenCountEstimator.INSTANCE;
+  }
+
+  public int countTokens(String text) {
+    return tokenCountEstimator.estimate(text);
+  }
+
+  public List<Chunk> split(String text) {
+    List<Unit> units = units(text);
+    List<Chunk> chunks = new ArrayList<>();
+    int from = 0;
+    while (from < units.size()) {
+      // fill the window sentence by sentence
+      int to = from;
+      int tokens = 0;
+      while (to < units.size() && (to == from || tokens + units.get(to).tokens() <= chunkTokens)) {
+        tokens += units.get(to).tokens();
+        to++;
+      }
+
+      // when the window is full, end it at the last paragraph break if that gives up little of it
+      if (to < units.size() && !units.get(to).paragraphStart()) {
+        int tail = 0;
+        for (int k = to - 1; k > from && tail + units.get(k).tokens() <= tokens * paragraphSlack; k--) {
+          tail += units.get(k).tokens();
+          if (units.get(k).paragraphStart()) {
+            to = k;
+            tokens -= tail;
+            break;
+          }
+        }
+      }
+
+      int start = units.get(from).start();
+      int end = units.get(to - 1).end();
+      chunks.add(new Chunk(chunks.size(), text.substring(start, end).strip(), tokens, start, end));
+      if (to == units.size()) {
+        break;
+      }
+
+      // the next window restarts on the trailing sentences fitting in the overlap, always moving forward
+      int next = to;
+      int overlap = 0;
+      while (next - 1 > from && overlap + units.get(next - 1).tokens() <= overlapTokens) {
+        overlap += units.get(next - 1).tokens();
+        next--;
+      }
+      from = next;
+    }
+    return chunks;
+  }
+
+  private List<Unit> units(String text) {
+    List<Unit> units = new ArrayList<>();
+    BreakIterator sentences = BreakIterator.getSentenceInstance(Locale.ROOT);
+    int paragraphStart = 0;
+    Matcher paragraphBreaks = PARAGRAPH_BREAK.matcher(text);
+    while (paragraphStart < text.length()) {
+      int paragraphEnd = paragraphBreaks.find() ? paragraphBreaks.end() : text.length();
+      String paragraph = text.substring(paragraphStart, paragraphEnd);
+      sentences.setText(paragraph);
+      boolean first = true;
+      for (int start = sentences.first(), end = sentences.next(); end != BreakIterator.DONE;
+           start = end, end = sentences.next()) {
+        addSentence(text, paragraphStart + start, paragraphStart + end, first, units);
+        first = false;
+      }
+      paragraphStart = paragraphEnd;
+    }
+    return units;
+  }
+
+  private void addSentence(String text, int start, int end, boolean paragraphStart, List<Unit> units) {
+    String sentence = text.substring(start, end);
+    if (sentence.isBlank()) {
+      return;
+    }
+    int tokens = countTokens(sentence);
+    if (tokens <= chunkTokens) {
+      units.add(new Unit(start, end, tokens, paragraphStart));
+      return;
+    }
+
+    // a sentence longer than a window (tables, verse, run-on text) falls back to word runs
+    Matcher words = WORD.matcher(sentence);
+    int runStart = 0;
+    int runEnd = 0;
+    int runTokens = 0;
+    boolean firstRun = paragraphStart;
+    while (words.find()) {
+      int wordTokens = countTokens(words.group());
+      if (runTokens > 0 && runTokens + wordTokens > chunkTokens) {
+        units.add(new Unit(start + runStart, start + runEnd, runTokens, firstRun));
+        firstRun = false;
+        runStart = words.start();
+        runTokens = 0;
+      }
+      runTokens += wordTokens;
+      runEnd = words.end();
+    }
+    units.add(new Unit(start + runStart, start + runEnd, runTokens, firstRun));
+  }
+
+  public static final class Builder {
+    private int chunkTokens = 4_000;
+    private int overlapTokens = 400;
+    private double paragraphSlack = 0.2;
+    private TokenCountEstimator tokenCountEstimator = defaultTokenCountEstimator();
+
+    private Builder() {
+    }
+
+    public Builder chunkTokens(int chunkTokens) {
+      this.chunkTokens = chunkTokens;
+      return this;
+    }
+
+    public Builder overlapTokens(int overlapTokens) {
+      this.overlapTokens = overlapTokens;
+      return this;
+    }
+
+    // share of a full window which may be given up to end it on a paragraph rather than a sentence
+    public Builder paragraphSlack(double paragraphSlack) {
+      this.paragraphSlack = paragraphSlack;
+      return this;
+    }
+
+    public Builder tokenCountEstimator(TokenCountEstimator tokenCountEstimator) {
+      this.tokenCountEstimator = tokenCountEstimator;
+      return this;
+    }
+
+    public TextChunker build() {
+      if (chunkTokens <= 0 || overlapTokens < 0 || overlapTokens >= chunkTokens) {
+        throw new IllegalArgumentException(
+            "Expected 0 <= overlapTokens < chunkTokens, got " + overlapTokens + " and " + chunkTokens);
+      }
+      return new TextChunker(this);
+    }
+  }
+}
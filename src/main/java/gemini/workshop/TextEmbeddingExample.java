@@ -17,6 +17,7 @@ package gemini.workshop;
 
 import java.util.Arrays;
 import java.util.List;
+import org.springframework.ai.document.Document;
 import org.springframework.ai.embedding.EmbeddingResponse;
 import org.springframework.ai.reader.TextReader;
 import org.springframework.ai.google.genai.GoogleGenAiEmbeddingConnectionDetails;
@@ -46,14 +47,37 @@ public class TextEmbeddingExample {
 
     var embeddingModel = new GoogleGenAiTextEmbeddingModel(connectionDetails, options);
 
-    // read the book to generate embeddings for
-    TextReader reader = new TextReader("classpath:/the-jungle-book.txt");
-    String embedText = reader.get().getFirst().getText();
-
+    // embed a short text in a single call
     long start = System.currentTimeMillis();
-    EmbeddingResponse embeddingResponse = embeddingModel.embedForResponse(List.of(embedText));
+    EmbeddingResponse embeddingResponse = embeddingModel.embedForResponse(
+        List.of("The Jungle Book is a collection of stories by Rudyard Kipling."));
     System.out.println("Embedding response: " + Arrays.toString(embeddingResponse.getResult().getOutput()));
     System.out.println(
         "Text embedding call took " + (System.currentTimeMillis() - start) + " ms");
+
+    // read the book to generate embeddings for
+    // the whole book is far beyond the input limit of the model: it is embedded in chunks,
+    // sent in concurrent batches, and pooled into one vector for the book
+    TextReader reader = new TextReader("classpath:/the-jungle-book.txt");
+    Document book = reader.get().getFirst();
+
+    DocumentEmbedder documentEmbedder = DocumentEmbedder.builder(embeddingModel)
+        .chunkTokens(1_500)
+        .batchSize(8)
+        .concurrency(4)
+        .pooling(DocumentEmbedder.Pooling.TOKEN_WEIGHTED)
+        .build();
+    DocumentEmbedder.DocumentEmbedding bookEmbedding = documentEmbedder.embed(book);
+    System.out.println("Book embedding: " + Arrays.toString(bookEmbedding.embedding()));
+    System.out.printf("Embedded %d chunks in %d requests, took %d ms%n",
+        bookEmbedding.chunks().size(), bookEmbedding.requests(), bookEmbedding.millis());
+
+    // the chunk vectors remain available for retrieval of passages
+    DocumentEmbedder.ChunkEmbedding firstChunk = bookEmbedding.chunks().getFirst();
+    System.out.printf("Chunk %s of %d tokens, %d dimensions: %s ...%n",
+        firstChunk.chunk().getMetadata().get(DocumentEmbedder.CHUNK_INDEX_METADATA),
+        firstChunk.tokens(),
+        firstChunk.embedding().length,
+        firstChunk.chunk().getText().substring(0, 50));
   }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.List;
+import java.util.function.Supplier;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.TextReader;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+
+/**
+ * Compares TokenTextSplitter with ParallelTokenTextSplitter on the-jungle-book.txt, with the settings
+ * of RAGExample and the defaults. Reports time and allocation per split and checks that both
+ * splitters return the same chunks.
+ * Runs offline, no model calls.
+ */
+public class TokenTextSplitterBenchmark {
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 20;
+
+  public static void main(String[] args) throws Exception {
+    List<Document> book = new TextReader("classpath:/the-jungle-book.txt").get();
+    System.out.printf("the-jungle-book.txt, %d characters, %d cores%n",
+        book.getFirst().getText().length(), Runtime.getRuntime().availableProcessors());
+
+    compare("chunkSize 5000 (RAGExample)", book,
+        () -> new TokenTextSplitter(5000, 100, 5, 100000, true),
+        () -> new ParallelTokenTextSplitter(5000, 100, 5, 100000, true));
+    compare("chunkSize 800 (defaults)", book,
+        TokenTextSplitter::new,
+        ParallelTokenTextSplitter::new);
+  }
+
+  private static void compare(String label, List<Document> book, Supplier<TextSplitter> current,
+      Supplier<TextSplitter> parallel) throws Exception {
+    List<String> expected = texts(current.get().apply(book));
+    List<String> actual = texts(parallel.get().apply(book));
+    System.out.printf("%s: %d chunks, %s%n", label, expected.size(),
+        expected.equals(actual) ? "same chunks" : "DIFFERENT CHUNKS");
+    measure("TokenTextSplitter", () -> current.get().apply(book));
+    measure("ParallelTokenTextSplitter", () -> parallel.get().apply(book));
+  }
+
+  private static List<String> texts(List<Document> chunks) {
+    return chunks.stream().map(Document::getText).toList();
+  }
+
+  private static void measure(String label, Benchmark.Task<Object> split) throws Exception {
+    Benchmark.measure(label, "split", WARMUP_ROUNDS, MEASURED_ROUNDS, split);
+  }
+}
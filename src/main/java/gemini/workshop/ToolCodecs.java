@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.DefaultToolDefinition;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.execution.DefaultToolCallResultConverter;
+import org.springframework.ai.tool.execution.ToolCallResultConverter;
+import org.springframework.ai.tool.execution.ToolExecutionException;
+import org.springframework.ai.util.JacksonUtils;
+
+/**
+ * Precompiled JSON codecs for tool request/response records and structured-output beans.
+ * The shared mapper uses Jackson Blackbird, which replaces reflective accessors and constructors
+ * with bytecode generated through LambdaMetafactory, and each registered type gets its
+ * ObjectReader and ObjectWriter resolved once instead of on every call.
+ */
+public final class ToolCodecs {
+
+  // same settings as Spring AI's tool JSON parser, plus generated accessors
+  private static final ObjectMapper OBJECT_MAPPER = JsonMapper.builder()
+      .addModules(JacksonUtils.instantiateAvailableModules())
+      .addModule(new BlackbirdModule())
+      .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+      .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+      .build();
+
+  private static final ToolCallResultConverter RESULT_CONVERTER = new DefaultToolCallResultConverter();
+
+  private static final Map<Class<?>, Codec<?>> CODECS = new ConcurrentHashMap<>();
+
+  /** Reader and writer bound to a single type, with their (de)serializers resolved up front. */
+  public static final class Codec<T> {
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+
+    private Codec(Class<T> type) {
+      this.reader = OBJECT_MAPPER.readerFor(type);
+      this.writer = OBJECT_MAPPER.writerFor(type);
+    }
+
+    public T read(String json) {
+      try {
+        return reader.readValue(json);
+      } catch (JsonProcessingException e) {
+        throw new IllegalArgumentException("Cannot decode " + reader.getValueType() + " from: " + json, e);
+      }
+    }
+
+    public String write(T value) {
+      try {
+        return writer.writeValueAsString(value);
+      } catch (JsonProcessingException e) {
+        throw new IllegalArgumentException("Cannot encode " + value, e);
+      }
+    }
+  }
+
+  private ToolCodecs() {
+  }
+
+  // the mapper behind all codecs, e.g. for BeanOutputConverter(type, ToolCodecs.objectMapper())
+  public static ObjectMapper objectMapper() {
+    return OBJECT_MAPPER;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> Codec<T> forType(Class<T> type) {
+    return (Codec<T>) CODECS.computeIfAbsent(type, t -> new Codec<>(type));
+  }
+
+  /**
+   * ToolCallback decoding its arguments with a precompiled codec, in place of the reflective databind
+   * round trip FunctionToolCallback performs on each call. Results go through the same
+   * DefaultToolCallResultConverter, and failures, bad arguments included, are reported as a
+   * ToolExecutionException, so the model gets an error result to recover from like with FunctionToolCallback.
+   */
+  public static <I, O> ToolCallback toolCallback(String name, String description, String inputSchema,
+      Class<I> inputType, Function<I, O> function) {
+    ToolDefinition toolDefinition = DefaultToolDefinition.builder()
+        .name(name)
+        .description(description)
+        .inputSchema(inputSchema)
+        .build();
+    Codec<I> input = forType(inputType);
+    return new ToolCallback() {
+      @Override
+      public ToolDefinition getToolDefinition() {
+        return toolDefinition;
+      }
+
+      @Override
+      public String call(String toolInput) {
+        return call(toolInput, null);
+      }
+
+      @Override
+      public String call(String toolInput, ToolContext toolContext) {
+        O result;
+        try {
+          result = function.apply(input.read(toolInput));
+        } catch (ToolExecutionException e) {
+          throw e;
+        } catch (RuntimeException e) {
+          throw new ToolExecutionException(toolDefinition, e);
+        }
+        return RESULT_CONVERTER.convert(result, null);
+      }
+    };
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import java.util.List;
+import org.springframework.ai.util.JacksonUtils;
+import org.springframework.ai.util.json.JsonParser;
+
+/**
+ * Compares the per-call CPU time and allocation of the default ObjectMapper path used by
+ * FunctionToolCallback and BeanOutputConverter with the precompiled ToolCodecs,
+ * for tool request/response records and a structured-output bean.
+ * Runs offline, no model calls.
+ */
+public class ToolCodecsBenchmark {
+  private static final int WARMUP_ITERATIONS = 200_000;
+  private static final int MEASURED_ITERATIONS = 500_000;
+
+  record BooksAuthor(String writer, List<String> books) {}
+
+  public static void main(String[] args) throws Exception {
+    String weatherRequest = """
+        {"location": "Vancouver, BC", "unit": "celsius"}""";
+    String sumRequest = """
+        {"items": [1, 2, 3, 4, 5, 6, 7, 8, 9, 10]}""";
+    String booksAuthor = """
+        {"writer": "Gabriel Garcia Marquez", "books": ["One Hundred Years of Solitude",
+        "Love in the Time of Cholera", "Chronicle of a Death Foretold", "The Autumn of the Patriarch"]}""";
+    FunctionCallingExample.BookStoreService.Response bookStoreResponse = new FunctionCallingExample.BookStoreService.Response(
+        "The Jungle Book", "Rudyard Kipling", "The book is available for purchase in the book store in paperback format.");
+
+    // the mapper BeanOutputConverter builds by default
+    ObjectMapper beanOutputMapper = JsonMapper.builder()
+        .addModules(JacksonUtils.instantiateAvailableModules())
+        .build();
+
+    ToolCodecs.Codec<FunctionCallingMultipleExample.WeatherService.Request> weatherCodec =
+        ToolCodecs.forType(FunctionCallingMultipleExample.WeatherService.Request.class);
+    ToolCodecs.Codec<FunctionCallingMultipleExample.SumService.Request> sumCodec =
+        ToolCodecs.forType(FunctionCallingMultipleExample.SumService.Request.class);
+    ToolCodecs.Codec<FunctionCallingExample.BookStoreService.Response> bookStoreCodec =
+        ToolCodecs.forType(FunctionCallingExample.BookStoreService.Response.class);
+    ToolCodecs.Codec<BooksAuthor> booksAuthorCodec = ToolCodecs.forType(BooksAuthor.class);
+
+    measure("weather request, ObjectMapper",
+        () -> JsonParser.fromJson(weatherRequest, FunctionCallingMultipleExample.WeatherService.Request.class));
+    measure("weather request, ToolCodecs", () -> weatherCodec.read(weatherRequest));
+
+    measure("sum request, ObjectMapper",
+        () -> JsonParser.fromJson(sumRequest, FunctionCallingMultipleExample.SumService.Request.class));
+    measure("sum request, ToolCodecs", () -> sumCodec.read(sumRequest));
+
+    measure("bookstore response, ObjectMapper", () -> JsonParser.toJson(bookStoreResponse));
+    measure("bookstore response, ToolCodecs", () -> bookStoreCodec.write(bookStoreResponse));
+
+    measure("structured output, ObjectMapper", () -> beanOutputMapper.readValue(booksAuthor, BooksAuthor.class));
+    measure("structured output, ToolCodecs", () -> booksAuthorCodec.read(booksAuthor));
+  }
+
+  private static void measure(String label, Benchmark.Task<Object> call) throws Exception {
+    Benchmark.measure(label, "call", WARMUP_ITERATIONS, MEASURED_ITERATIONS, call);
+  }
+}
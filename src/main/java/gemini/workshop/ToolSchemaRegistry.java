@@ -0,0 +1,117 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.genai.types.FunctionDeclaration;
+import com.google.genai.types.Schema;
+import com.google.genai.types.Tool;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.springframework.ai.model.ModelOptionsUtils;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.util.json.schema.JsonSchemaGenerator;
+
+/**
+ * Registry computing tool schemas once, at startup, instead of on every request.
+ * The JSON schema of each input type is derived by reflection a single time, parsed into a
+ * GenAI FunctionDeclaration, and frozen: callbacks and GenAI tools built from the registry
+ * reuse the same immutable definitions on every call.
+ */
+public final class ToolSchemaRegistry {
+
+  /** A frozen tool definition: its JSON schema and the matching GenAI FunctionDeclaration. */
+  public record RegisteredTool(String name, String description, Class<?> inputType, String inputSchema,
+                               FunctionDeclaration functionDeclaration) {}
+
+  private final Map<String, RegisteredTool> tools;
+  private final Tool tool;
+
+  private ToolSchemaRegistry(Map<String, RegisteredTool> tools) {
+    this.tools = tools;
+    this.tool = Tool.builder()
+        .functionDeclarations(tools.values().stream().map(RegisteredTool::functionDeclaration).toList())
+        .build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public RegisteredTool get(String name) {
+    RegisteredTool registeredTool = tools.get(name);
+    if (registeredTool == null) {
+      throw new IllegalArgumentException("No tool registered with name: " + name);
+    }
+    return registeredTool;
+  }
+
+  public List<String> names() {
+    return List.copyOf(tools.keySet());
+  }
+
+  // GenAI tool declaring every registered function, for GenerateContentConfig.tools(...)
+  public Tool tool() {
+    return tool;
+  }
+
+  // ToolCallback reusing the precomputed schema, with precompiled codecs for its arguments and result
+  @SuppressWarnings("unchecked")
+  public <I, O> ToolCallback toolCallback(String name, Function<I, O> function) {
+    RegisteredTool registeredTool = get(name);
+    return ToolCodecs.toolCallback(name, registeredTool.description(), registeredTool.inputSchema(),
+        (Class<I>) registeredTool.inputType(), function);
+  }
+
+  public static final class Builder {
+    private final Map<String, RegisteredTool> tools = new LinkedHashMap<>();
+    // several tools often share an input type, derive its schema only once
+    private final Map<Class<?>, String> schemas = new HashMap<>();
+    private final Map<String, Schema> parsedSchemas = new HashMap<>();
+
+    private Builder() {
+    }
+
+    public Builder register(String name, String description, Class<?> inputType) {
+      String inputSchema = schemas.computeIfAbsent(inputType, type -> JsonSchemaGenerator.generateForType(type));
+      Schema parameters = parsedSchemas.computeIfAbsent(inputSchema, Builder::parseSchema);
+      FunctionDeclaration functionDeclaration = FunctionDeclaration.builder()
+          .name(name)
+          .description(description)
+          .parameters(parameters)
+          .build();
+      tools.put(name, new RegisteredTool(name, description, inputType, inputSchema, functionDeclaration));
+      return this;
+    }
+
+    public ToolSchemaRegistry build() {
+      return new ToolSchemaRegistry(Collections.unmodifiableMap(new LinkedHashMap<>(tools)));
+    }
+
+    // same conversion GoogleGenAiChatModel applies to every tool on every request
+    private static Schema parseSchema(String inputSchema) {
+      try {
+        return ModelOptionsUtils.OBJECT_MAPPER.readValue(inputSchema, Schema.class);
+      } catch (JsonProcessingException e) {
+        throw new IllegalStateException("Invalid tool input schema: " + inputSchema, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import com.google.genai.types.FunctionDeclaration;
+import com.google.genai.types.Schema;
+import com.google.genai.types.Tool;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import org.springframework.ai.google.genai.GoogleGenAiChatOptions;
+import org.springframework.ai.google.genai.schema.GoogleGenAiToolCallingManager;
+import org.springframework.ai.model.ModelOptionsUtils;
+import org.springframework.ai.model.tool.DefaultToolCallingManager;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.function.FunctionToolCallback;
+
+/**
+ * Measures the per-request time and allocation of turning dozens of tools into the GenAI Tool of a
+ * GoogleGenAiChatModel request: resolving the tool definitions through GoogleGenAiToolCallingManager,
+ * which converts every input schema to OpenAPI, then parsing them into FunctionDeclarations, as the chat
+ * model does on each call. GoogleGenAiChatModel offers no way to pass a prebuilt Tool, so on this path
+ * the conversion and parsing are paid on every request, registry or not: the registry only saves the
+ * reflection of callbacks built per request, and its callbacks cost the same as plain callbacks built
+ * once, the baseline row. Only AsyncToolCallingChat reuses the frozen registry Tool on every turn.
+ * Runs offline, no model calls; pass the number of tools as first argument (default 48).
+ */
+public class ToolSchemaRegistryBenchmark {
+  private static final int WARMUP_ITERATIONS = 500;
+  private static final int MEASURED_ITERATIONS = 1_000;
+
+  private record ToolType(String description, Class<?> inputType) {}
+
+  public static void main(String[] args) throws Exception {
+    int toolCount = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+
+    List<ToolType> toolTypes = List.of(
+        new ToolType("Get the weather in a location", FunctionCallingMultipleExample.WeatherService.Request.class),
+        new ToolType("Divide two integers", FunctionCallingMultipleExample.DivisionService.Request.class),
+        new ToolType("Sum a list of integers", FunctionCallingMultipleExample.SumService.Request.class),
+        new ToolType("Get availability of a book in the bookstore", FunctionCallingExample.BookStoreService.Request.class));
+
+    List<String> names = new ArrayList<>();
+    ToolSchemaRegistry.Builder registryBuilder = ToolSchemaRegistry.builder();
+    for (int i = 0; i < toolCount; i++) {
+      ToolType toolType = toolTypes.get(i % toolTypes.size());
+      String name = "tool" + i;
+      names.add(name);
+      registryBuilder.register(name, toolType.description(), toolType.inputType());
+    }
+    ToolSchemaRegistry registry = registryBuilder.build();
+
+    Function<Object, Object> noop = input -> input;
+    List<ToolCallback> registryCallbacks = names.stream()
+        .map(name -> registry.toolCallback(name, noop))
+        .toList();
+
+    // the manager GoogleGenAiChatModel wraps its tool calling manager in
+    ToolCallingManager toolCallingManager = new GoogleGenAiToolCallingManager(DefaultToolCallingManager.builder().build());
+
+    System.out.printf("Building the GenAI Tool of a GoogleGenAiChatModel request with %d functions%n", toolCount);
+
+    Benchmark.measure("callbacks built per request", "request", WARMUP_ITERATIONS, MEASURED_ITERATIONS, () -> {
+      List<ToolCallback> callbacks = new ArrayList<>(toolCount);
+      for (String name : names) {
+        callbacks.add(FunctionToolCallback.builder(name, noop)
+            .description(registry.get(name).description())
+            .inputType(registry.get(name).inputType())
+            .build());
+      }
+      return toTool(toolCallingManager, callbacks);
+    });
+
+    List<ToolCallback> onceCallbacks = names.stream()
+        .<ToolCallback>map(name -> FunctionToolCallback.builder(name, noop)
+            .description(registry.get(name).description())
+            .inputType(registry.get(name).inputType())
+            .build())
+        .toList();
+    Benchmark.measure("callbacks built once, no registry", "request", WARMUP_ITERATIONS, MEASURED_ITERATIONS,
+        () -> toTool(toolCallingManager, onceCallbacks));
+
+    Benchmark.measure("callbacks from ToolSchemaRegistry", "request", WARMUP_ITERATIONS, MEASURED_ITERATIONS,
+        () -> toTool(toolCallingManager, registryCallbacks));
+  }
+
+  // what GoogleGenAiChatModel does with the tool callbacks of the request options
+  private static Tool toTool(ToolCallingManager toolCallingManager, List<ToolCallback> callbacks) throws Exception {
+    List<ToolDefinition> toolDefinitions = toolCallingManager.resolveToolDefinitions(
+        GoogleGenAiChatOptions.builder().toolCallbacks(callbacks).build());
+    List<FunctionDeclaration> declarations = new ArrayList<>(toolDefinitions.size());
+    for (ToolDefinition toolDefinition : toolDefinitions) {
+      declarations.add(FunctionDeclaration.builder()
+          .name(toolDefinition.name())
+          .description(toolDefinition.description())
+          .parameters(ModelOptionsUtils.OBJECT_MAPPER.readValue(toolDefinition.inputSchema(), Schema.class))
+          .build());
+    }
+    return Tool.builder().functionDeclarations(declarations).build();
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gemini.workshop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+/**
+ * Hierarchical reduce of sub-summaries: adjacent sub-summaries are grouped into batches bounded in tokens,
+ * every batch of a level is combined in parallel, and the combined summaries form the next level,
+ * until they all fit in a single final prompt.
+ * A summary larger than the batch size on its own is split between sentences and its pieces are
+ * re-summarized alone, so no combine prompt and no final prompt grows beyond the batch size.
+ * The asynchronous variant merges groups of fanIn adjacent sub-summaries as soon as the group is complete,
+ * without waiting on the whole map phase; its groups are bounded in count, not in tokens.
+ */
+public final class TreeReducer {
+
+  /** One level of reduce: its summaries and their tokens, the batches they were combined in and the largest. */
+  public record LevelStats(int depth, int summaries, int tokens, int batches, int maxBatchTokens, long millis) {}
+
+  // adjacent summaries combined in one prompt, with the tokens of the prompt
+  private record Batch(List<String> summaries, int tokens) {}
+
+  private final UnaryOperator<String> combine;
+  private final int batchTokens;
+  private final int fanIn;
+  private final TokenCountEstimator tokenCountEstimator;
+  private final Executor executor;
+  // splits a summary exceeding the batch size on its own
+  private final TextChunker splitter;
+  private final List<LevelStats> levels = new CopyOnWriteArrayList<>();
+
+  private TreeReducer(Builder builder) {
+    this.combine = builder.combine;
+    this.batchTokens = builder.batchTokens;
+    this.fanIn = builder.fanIn;
+    this.tokenCountEstimator = builder.tokenCountEstimator;
+    this.executor = builder.executor;
+    this.splitter = TextChunker.builder()
+        .chunkTokens(batchTokens)
+        .overlapTokens(0)
+        .tokenCountEstimator(tokenCountEstimator)
+        .build();
+  }
+
+  // combine turns a batch of sub-summaries, one per line, into a single shorter summary
+  public static Builder builder(UnaryOperator<String> combine) {
+    return new Builder(combine);
+  }
+
+  /** Reduces the summaries, in order, until they fit in one batch handed to finish for the final summary. */
+  public String reduce(List<String> summaries, UnaryOperator<String> finish) {
+    List<String> level = List.copyOf(summaries);
+    int tokens = tokens(level);
+    int depth = 0;
+    while (tokens > batchTokens) {
+      long start = System.currentTimeMillis();
+      List<Batch> batches = batches(level);
+      List<CompletableFuture<String>> combined = batches.stream()
+          .map(batch -> CompletableFuture.supplyAsync(
+              () -> combine.apply(String.join("\n", batch.summaries())), executor))
+          .toList();
+      List<String> next = combined.stream().map(CompletableFuture::join).toList();
+      depth++;
+      levels.add(new LevelStats(depth, level.size(), tokens, batches.size(),
+          batches.stream().mapToInt(Batch::tokens).max().orElse(0), System.currentTimeMillis() - start));
+
+      int nextTokens = tokens(next);
+      // a combine not shortening its input would loop forever
+      if (nextTokens >= tokens) {
+        throw new IllegalStateException("Tree reduce level " + depth + " did not shorten the summaries: "
+            + tokens + " tokens in, " + nextTokens + " tokens out");
+      }
+      level = next;
+      tokens = nextTokens;
+    }
+    return finish.apply(String.join("\n", level));
+  }
+
+  // the levels of every reduce run so far, in order
+  public List<LevelStats> levels() {
+    return List.copyOf(levels);
+  }
+
+  /**
+   * Reduces summaries still being computed: every group of fanIn adjacent summaries is combined once its
+   * own members are done, groups of partial summaries are combined the same way, and finish runs on the
+   * last level of at most fanIn summaries. Reduce work overlaps the map stragglers, and order is preserved.
+   */
+  public CompletableFuture<String> reduceAsync(List<CompletableFuture<String>> summaries,
+      UnaryOperator<String> finish) {
+    List<CompletableFuture<String>> level = List.copyOf(summaries);
+    while (level.size() > fanIn) {
+      List<CompletableFuture<String>> next = new ArrayList<>();
+      for (int i = 0; i < level.size(); i += fanIn) {
+        List<CompletableFuture<String>> group = level.subList(i, Math.min(i + fanIn, level.size()));
+        // a trailing single summary moves up a level as is
+        next.add(group.size() == 1 ? group.getFirst() : whenAllDone(group, combine));
+      }
+      level = next;
+    }
+    return whenAllDone(level, finish);
+  }
+
+  private CompletableFuture<String> whenAllDone(List<CompletableFuture<String>> group, UnaryOperator<String> reduce) {
+    return CompletableFuture.allOf(group.toArray(new CompletableFuture<?>[0]))
+        .thenApplyAsync(done -> {
+          List<String> summaries = group.stream().map(CompletableFuture::join).toList();
+          return reduce.apply(String.join("\n", summaries));
+        }, executor);
+  }
+
+  // adjacent summaries up to the token budget, one token counted for each line break joining them
+  private List<Batch> batches(List<String> level) {
+    List<Batch> batches = new ArrayList<>();
+    List<String> batch = new ArrayList<>();
+    int tokens = 0;
+    for (String summary : level) {
+      int summaryTokens = tokenCountEstimator.estimate(summary);
+      int batchTokensWith = batch.isEmpty() ? summaryTokens : tokens + 1 + summaryTokens;
+      if (batchTokensWith > batchTokens && !batch.isEmpty()) {
+        batches.add(new Batch(batch, tokens));
+        batch = new ArrayList<>();
+        batchTokensWith = summaryTokens;
+      }
+      if (summaryTokens > batchTokens) {
+        // too large for any batch: its pieces are re-summarized one by one
+        for (TextChunker.Chunk piece : splitter.split(summary)) {
+          batches.add(new Batch(List.of(piece.text()), piece.tokens()));
+        }
+        tokens = 0;
+        continue;
+      }
+      batch.add(summary);
+      tokens = batchTokensWith;
+    }
+    if (!batch.isEmpty()) {
+      batches.add(new Batch(batch, tokens));
+    }
+    return batches;
+  }
+
+  private int tokens(List<String> level) {
+    return level.stream().mapToInt(tokenCountEstimator::estimate).sum();
+  }
+
+  public static final class Builder {
+    private final UnaryOperator<String> combine;
+    private int batchTokens = 16_000;
+    private int fanIn = 4;
+    private TokenCountEstimator tokenCountEstimator = TextChunker.defaultTokenCountEstimator();
+    private Executor executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private Builder(UnaryOperator<String> combine) {
+      this.combine = combine;
+    }
+
+    public Builder batchTokens(int batchTokens) {
+      this.batchTokens = batchTokens;
+      return this;
+    }
+
+    // adjacent summaries merged together by reduceAsync, at least two
+    public Builder fanIn(int fanIn) {
+      this.fanIn = Math.max(2, fanIn);
+      return this;
+    }
+
+    public Builder tokenCountEstimator(TokenCountEstimator tokenCountEstimator) {
+      this.tokenCountEstimator = tokenCountEstimator;
+      return this;
+    }
+
+    public Builder executor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public TreeReducer build() {
+      return new TreeReducer(this);
+    }
+  }
+}